@@ -0,0 +1,761 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+
+/**
+ * A file system that keeps a buffer cache of fixed-size blocks in front of
+ * another file system. Every <tt>OpenFile</tt> with the same name shares the
+ * same cached blocks, and blocks are evicted least recently used first.
+ *
+ * <p>
+ * Writes only go to the cache. Dirty blocks are written back when they are
+ * evicted, when the last <tt>OpenFile</tt> for the file is closed, and when
+ * <tt>sync()</tt> is called. Blocks stay cached after a file is closed, and
+ * the underlying file is only reopened when a block has to be read or
+ * written, so reading a file again costs nothing while its blocks are still
+ * in the cache.
+ *
+ * <p>
+ * Each <tt>OpenFile</tt> watches for sequential access. A sequential reader
+ * has the blocks after the ones it is reading fetched ahead of time, and a
+ * sequential writer has the blocks it has filled written behind it, both by
+ * a kernel thread that works through a queue of requests. Adjacent blocks
+ * are read and written in a single transfer, so a stream of small reads or
+ * writes reaches the underlying file system as a few large ones.
+ *
+ * <p>
+ * To use it, set <tt>ThreadedKernel.fileSystem</tt> to
+ * <tt>nachos.filesys.CachedFileSystem</tt>. The block size and the number of
+ * blocks come from <tt>CachedFileSystem.blockSize</tt> and
+ * <tt>CachedFileSystem.numBlocks</tt>. <tt>CachedFileSystem.readAhead</tt>
+ * and <tt>CachedFileSystem.writeBehind</tt> are the number of blocks fetched
+ * ahead and the number of filled blocks gathered before writing them behind,
+ * and <tt>CachedFileSystem.maxTransfer</tt> is the most blocks moved in one
+ * transfer.
+ */
+public class CachedFileSystem implements FileSystem, Syncable {
+    /**
+     * Allocate a new buffer cache in front of the file system named by
+     * <tt>CachedFileSystem.fileSystem</tt>, or the stub file system if none
+     * is named.
+     */
+    public CachedFileSystem() {
+	this(createFileSystem());
+    }
+
+    private static FileSystem createFileSystem() {
+	String fileSystemName = Config.getString("CachedFileSystem.fileSystem");
+	if (fileSystemName != null)
+	    return (FileSystem) Lib.constructObject(fileSystemName);
+	else
+	    return Machine.stubFileSystem();
+    }
+
+    /**
+     * Allocate a new buffer cache in front of the specified file system.
+     *
+     * @param	fileSystem	the file system to cache.
+     */
+    public CachedFileSystem(FileSystem fileSystem) {
+	this.fileSystem = fileSystem;
+
+	blockSize = Config.getInteger("CachedFileSystem.blockSize",
+				      Processor.pageSize);
+	numBlocks = Config.getInteger("CachedFileSystem.numBlocks", 64);
+	readAhead = Config.getInteger("CachedFileSystem.readAhead", 4);
+	writeBehind = Config.getInteger("CachedFileSystem.writeBehind", 4);
+	maxTransfer = Config.getInteger("CachedFileSystem.maxTransfer", 8);
+	Lib.assertTrue(blockSize > 0 && numBlocks > 0 && maxTransfer > 0);
+	Lib.assertTrue(readAhead >= 0 && writeBehind >= 0);
+    }
+
+    public OpenFile open(String name, boolean truncate) {
+	lock.acquire();
+
+	File file = files.get(name);
+	if (file == null) {
+	    OpenFile backing = fileSystem.open(name, truncate);
+	    if (backing == null) {
+		lock.release();
+		return null;
+	    }
+
+	    file = new File(name, backing);
+	    files.put(name, file);
+	    file.openCount++;
+	}
+	else if (truncate) {
+	    OpenFile backing = fileSystem.open(name, true);
+	    if (backing == null) {
+		lock.release();
+		return null;
+	    }
+
+	    // count the open first, so discarding the blocks keeps the file
+	    file.openCount++;
+	    discard(file);
+	    file.length = 0;
+	    if (file.backing == null)
+		file.backing = backing;
+	    else
+		backing.close();
+	}
+	else {
+	    file.openCount++;
+	}
+
+	lock.release();
+	return new CachedOpenFile(file);
+    }
+
+    public boolean remove(String name) {
+	lock.acquire();
+
+	File file = files.remove(name);
+	if (file != null) {
+	    discard(file);
+	    file.removed = true;
+	}
+
+	boolean result = fileSystem.remove(name);
+
+	lock.release();
+	return result;
+    }
+
+    /**
+     * Write every dirty block in the cache back to the underlying file
+     * system.
+     */
+    public void sync() {
+	lock.acquire();
+	flush(null);
+	lock.release();
+
+	if (fileSystem instanceof Syncable)
+	    ((Syncable) fileSystem).sync();
+    }
+
+    /**
+     * Return the block of a file with the specified block number, reading it
+     * from the underlying file if it is not cached. The block is not busy on
+     * return. The cache lock must be held.
+     *
+     * @param	file		the file.
+     * @param	blockNumber	the block number within the file.
+     * @param	fill		<tt>false</tt> if the caller is about to
+     *				overwrite the whole block, so it need not be
+     *				read.
+     * @return	the block, or <tt>null</tt> if it could not be read.
+     */
+    private Block getBlock(File file, int blockNumber, boolean fill) {
+	Long key = makeKey(file, blockNumber);
+	boolean counted = false;
+
+	while (true) {
+	    Block block = blocks.get(key);
+	    if (block != null) {
+		if (block.busy) {
+		    // being fetched ahead, or written back
+		    ioDone.sleep();
+		    continue;
+		}
+
+		if (!counted)
+		    Machine.recordCacheLookup(true);
+		touch(block);
+		return block;
+	    }
+
+	    if (!counted) {
+		Machine.recordCacheLookup(false);
+		counted = true;
+	    }
+
+	    block = findVictim(false);
+	    if (block == null) {
+		// every block is busy
+		ioDone.sleep();
+		continue;
+	    }
+
+	    if (block.dirty) {
+		// the cache may have changed while writing, so look again
+		writeBack(block);
+		continue;
+	    }
+
+	    map(block, file, blockNumber);
+
+	    int start = blockNumber*blockSize;
+	    int amount = 0;
+	    if (fill && start < file.length) {
+		block.busy = true;
+		amount = readBlocks(file, start, block.data,
+				    Math.min(blockSize, file.length-start));
+		block.busy = false;
+		ioDone.wakeAll();
+
+		if (amount == -1) {
+		    unmap(block);
+		    return null;
+		}
+	    }
+	    for (int i=amount; i<blockSize; i++)
+		block.data[i] = 0;
+
+	    return block;
+	}
+    }
+
+    /**
+     * Return the least recently used block that is not busy, or a new block
+     * if the cache is not full yet.
+     *
+     * @param	clean	<tt>true</tt> to skip dirty blocks.
+     * @return	the block, or <tt>null</tt> if there is none.
+     */
+    private Block findVictim(boolean clean) {
+	if (blocks.size() < numBlocks)
+	    return new Block();
+
+	for (Block block : lru) {
+	    if (!block.busy && !(clean && block.dirty))
+		return block;
+	}
+
+	return null;
+    }
+
+    /**
+     * Make a block the most recently used.
+     */
+    private void touch(Block block) {
+	lru.remove(block);
+	lru.add(block);
+    }
+
+    /**
+     * Make a clean block hold the specified block of a file.
+     */
+    private void map(Block block, File file, int blockNumber) {
+	if (block.file != null)
+	    unmap(block);
+
+	block.file = file;
+	block.blockNumber = blockNumber;
+	blocks.put(makeKey(file, blockNumber), block);
+	touch(block);
+	file.numBlocks++;
+    }
+
+    /**
+     * Read from the underlying file, releasing the cache lock meanwhile. The
+     * blocks being read must be busy.
+     */
+    private int readBlocks(File file, int start, byte[] data, int length) {
+	if (!openBacking(file))
+	    return -1;
+
+	OpenFile backing = file.backing;
+	lock.release();
+	int amount = backing.read(start, data, 0, length);
+	lock.acquire();
+
+	return amount;
+    }
+
+    /**
+     * Fetch blocks of a file that are not cached yet, in one read. Stops at
+     * the first block that is already cached, or past the end of the file,
+     * and only replaces clean blocks.
+     */
+    private void prefetch(File file, int first, int count) {
+	count = Math.min(count, maxTransfer);
+
+	Block[] run = new Block[count];
+	int n = 0;
+	while (n < count) {
+	    int blockNumber = first+n;
+	    if (blockNumber*blockSize >= file.length
+		|| blocks.containsKey(makeKey(file, blockNumber)))
+		break;
+
+	    Block block = findVictim(true);
+	    if (block == null)
+		break;
+
+	    map(block, file, blockNumber);
+	    block.busy = true;
+	    run[n++] = block;
+	}
+
+	if (n == 0)
+	    return;
+
+	Lib.debug(dbgCache, "reading ahead " + n + " blocks of " + file.name
+		  + " from block " + first);
+
+	int start = first*blockSize;
+	int length = Math.min(n*blockSize, file.length-start);
+	byte[] data = new byte[length];
+	int amount = readBlocks(file, start, data, length);
+
+	for (int i=0; i<n; i++) {
+	    Block block = run[i];
+	    block.busy = false;
+
+	    if (amount == -1) {
+		unmap(block);
+		continue;
+	    }
+
+	    int offset = i*blockSize;
+	    int valid = Math.max(0, Math.min(blockSize, amount-offset));
+	    System.arraycopy(data, offset, block.data, 0, valid);
+	    for (int j=valid; j<blockSize; j++)
+		block.data[j] = 0;
+	}
+
+	ioDone.wakeAll();
+    }
+
+    /**
+     * Write a dirty block back to its file, along with any dirty blocks on
+     * either side of it, in one write. The cache lock is released while the
+     * blocks are written, and they are busy meanwhile.
+     */
+    private void writeBack(Block block) {
+	Lib.assertTrue(block.dirty && !block.busy);
+
+	File file = block.file;
+	if (file.removed || block.blockNumber*blockSize >= file.length
+	    || !openBacking(file)) {
+	    block.dirty = false;
+	    return;
+	}
+
+	int first = block.blockNumber;
+	while (block.blockNumber-first+1 < maxTransfer
+	       && isWritable(file, first-1))
+	    first--;
+
+	int count = block.blockNumber-first+1;
+	while (count < maxTransfer && (first+count)*blockSize < file.length
+	       && isWritable(file, first+count))
+	    count++;
+
+	int start = first*blockSize;
+	int length = Math.min(count*blockSize, file.length-start);
+	byte[] data = block.data;
+	if (count > 1) {
+	    Lib.debug(dbgCache, "writing back " + count + " blocks of "
+		      + file.name + " from block " + first);
+	    data = new byte[length];
+	}
+
+	Block[] run = new Block[count];
+	for (int i=0; i<count; i++) {
+	    run[i] = blocks.get(makeKey(file, first+i));
+	    run[i].dirty = false;
+	    run[i].busy = true;
+
+	    if (count > 1) {
+		int offset = i*blockSize;
+		System.arraycopy(run[i].data, 0, data, offset,
+				 Math.min(blockSize, length-offset));
+	    }
+	}
+
+	OpenFile backing = file.backing;
+	lock.release();
+	backing.write(start, data, 0, length);
+	lock.acquire();
+
+	for (int i=0; i<count; i++)
+	    run[i].busy = false;
+	ioDone.wakeAll();
+    }
+
+    /**
+     * Test whether a block of a file is cached, dirty and not busy, so it can
+     * join a write back.
+     */
+    private boolean isWritable(File file, int blockNumber) {
+	if (blockNumber < 0)
+	    return false;
+
+	Block block = blocks.get(makeKey(file, blockNumber));
+	return block != null && block.dirty && !block.busy;
+    }
+
+    /**
+     * Write back the dirty blocks of a file, or of every file if
+     * <tt>file</tt> is <tt>null</tt>, and wait for any I/O on them to finish.
+     */
+    private void flush(File file) {
+	while (true) {
+	    Block next = null;
+	    for (Block block : blocks.values()) {
+		if ((file == null || block.file == file)
+		    && (block.dirty || block.busy)) {
+		    next = block;
+		    if (!block.busy)
+			break;
+		}
+	    }
+
+	    if (next == null)
+		return;
+
+	    if (next.busy)
+		ioDone.sleep();
+	    else
+		writeBack(next);
+	}
+    }
+
+    /**
+     * Drop every cached block of a file without writing it back.
+     */
+    private void discard(File file) {
+	while (true) {
+	    boolean busy = false;
+	    for (Iterator<Block> i=blocks.values().iterator(); i.hasNext(); ) {
+		Block block = i.next();
+		if (block.file == file) {
+		    if (block.busy) {
+			busy = true;
+		    }
+		    else {
+			i.remove();
+			forget(block);
+		    }
+		}
+	    }
+
+	    if (!busy)
+		return;
+
+	    ioDone.sleep();
+	}
+    }
+
+    private void unmap(Block block) {
+	blocks.remove(makeKey(block.file, block.blockNumber));
+	forget(block);
+    }
+
+    /**
+     * Note that a block no longer holds part of its file, and drop the file
+     * once nothing refers to it.
+     */
+    private void forget(Block block) {
+	File file = block.file;
+	block.file = null;
+	block.dirty = false;
+	lru.remove(block);
+
+	if (--file.numBlocks == 0 && file.openCount == 0)
+	    release(file);
+    }
+
+    /**
+     * Reopen the underlying file if it was closed. This holds the cache lock
+     * while the file is opened, which is rare next to reads and writes.
+     */
+    private boolean openBacking(File file) {
+	if (file.backing == null)
+	    file.backing = fileSystem.open(file.name, false);
+
+	return file.backing != null;
+    }
+
+    /**
+     * Close the underlying file of a file that is no longer open, and stop
+     * tracking it if none of its blocks are cached.
+     */
+    private void release(File file) {
+	if (file.backing != null) {
+	    file.backing.close();
+	    file.backing = null;
+	}
+
+	if (file.numBlocks == 0 && files.get(file.name) == file)
+	    files.remove(file.name);
+    }
+
+    private Long makeKey(File file, int blockNumber) {
+	return new Long(((long) file.id << 32) | blockNumber);
+    }
+
+    /**
+     * Hand a read ahead or write behind to the cache thread, starting the
+     * thread the first time. The cache lock must be held.
+     */
+    private void queue(Request request) {
+	if (thread == null) {
+	    thread = new KThread(new Runnable() {
+		    public void run() { runRequests(); }
+		}).setName("buffer cache");
+	    thread.fork();
+	}
+
+	requests.add(request);
+	requestReady.wake();
+    }
+
+    private void runRequests() {
+	lock.acquire();
+
+	while (true) {
+	    while (requests.isEmpty())
+		requestReady.sleep();
+
+	    Request request = requests.removeFirst();
+	    File file = request.file;
+
+	    // a closed file has already been written back, and nobody is
+	    // left to read ahead for
+	    if (file.openCount == 0 || file.removed)
+		continue;
+
+	    if (request.write) {
+		for (int i=0; i<request.count; i++) {
+		    Block block = blocks.get(makeKey(file, request.first+i));
+		    if (block != null && block.dirty && !block.busy)
+			writeBack(block);
+		}
+	    }
+	    else {
+		prefetch(file, request.first, request.count);
+	    }
+	}
+    }
+
+    /**
+     * A file with cached blocks or open <tt>OpenFile</tt>s.
+     */
+    private class File {
+	File(String name, OpenFile backing) {
+	    this.name = name;
+	    this.backing = backing;
+	    length = backing.length();
+	}
+
+	String name;
+	int id = nextFileID++;
+	/** The file on the underlying file system, or <tt>null</tt> if it has
+	 *  not been opened since it was last closed. */
+	OpenFile backing;
+	/** The length of the file, including data not yet written back. */
+	int length;
+	int openCount = 0;
+	int numBlocks = 0;
+	/** Set once the file is removed, so its blocks are never written. */
+	boolean removed = false;
+    }
+
+    private class Block {
+	File file = null;
+	int blockNumber;
+	byte[] data = new byte[blockSize];
+	boolean dirty = false;
+	/** Set while the block is being read or written. */
+	boolean busy = false;
+    }
+
+    /**
+     * A run of blocks to read ahead or write behind.
+     */
+    private static class Request {
+	Request(File file, int first, int count, boolean write) {
+	    this.file = file;
+	    this.first = first;
+	    this.count = count;
+	    this.write = write;
+	}
+
+	File file;
+	int first, count;
+	boolean write;
+    }
+
+    private class CachedOpenFile extends OpenFileWithPosition {
+	CachedOpenFile(File file) {
+	    super(CachedFileSystem.this, file.name);
+	    this.file = file;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (pos < 0 || offset < 0 || length < 0
+		|| offset+length > buf.length)
+		return -1;
+
+	    lock.acquire();
+
+	    if (file == null) {
+		lock.release();
+		return -1;
+	    }
+
+	    int amount = 0;
+	    while (amount < length && pos+amount < file.length) {
+		int filePos = pos+amount;
+		int blockOffset = filePos % blockSize;
+		int count = Math.min(Math.min(length-amount,
+					      blockSize-blockOffset),
+				     file.length-filePos);
+
+		Block block = getBlock(file, filePos/blockSize, true);
+		if (block == null)
+		    break;
+
+		System.arraycopy(block.data, blockOffset,
+				 buf, offset+amount, count);
+		amount += count;
+	    }
+
+	    if (amount > 0) {
+		if (pos == nextRead)
+		    readAhead(pos+amount);
+		nextRead = pos+amount;
+	    }
+
+	    boolean failed = (amount == 0 && length > 0 && pos < file.length);
+
+	    lock.release();
+	    return failed ? -1 : amount;
+	}
+
+	/**
+	 * Queue a read ahead of the blocks after the end of a sequential read,
+	 * once fewer than half of the blocks already asked for are left ahead
+	 * of the reader.
+	 */
+	private void readAhead(int end) {
+	    int next = end/blockSize;
+	    if (readAhead == 0 || readAheadTo-next > readAhead/2)
+		return;
+
+	    int first = Math.max(readAheadTo, next);
+	    if (first*blockSize >= file.length)
+		return;
+
+	    queue(new Request(file, first, readAhead, false));
+	    readAheadTo = first+readAhead;
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    if (pos < 0 || offset < 0 || length < 0
+		|| offset+length > buf.length)
+		return -1;
+
+	    lock.acquire();
+
+	    if (file == null) {
+		lock.release();
+		return -1;
+	    }
+
+	    int amount = 0;
+	    while (amount < length) {
+		int filePos = pos+amount;
+		int blockOffset = filePos % blockSize;
+		int count = Math.min(length-amount, blockSize-blockOffset);
+
+		Block block = getBlock(file, filePos/blockSize,
+				       count < blockSize);
+		if (block == null)
+		    break;
+
+		System.arraycopy(buf, offset+amount,
+				 block.data, blockOffset, count);
+		block.dirty = true;
+		amount += count;
+		file.length = Math.max(file.length, filePos+count);
+	    }
+
+	    if (amount > 0) {
+		if (pos == nextWrite)
+		    writeBehind(pos+amount);
+		else
+		    writeBehindFrom = (pos+amount)/blockSize;
+		nextWrite = pos+amount;
+	    }
+
+	    lock.release();
+	    return (amount == 0 && length > 0) ? -1 : amount;
+	}
+
+	/**
+	 * Queue a write behind of the blocks a sequential writer has filled,
+	 * once there are enough of them.
+	 */
+	private void writeBehind(int end) {
+	    int filled = end/blockSize;
+	    if (writeBehind == 0 || filled-writeBehindFrom < writeBehind)
+		return;
+
+	    queue(new Request(file, writeBehindFrom, filled-writeBehindFrom,
+			      true));
+	    writeBehindFrom = filled;
+	}
+
+	public int length() {
+	    return (file == null) ? -1 : file.length;
+	}
+
+	public void close() {
+	    lock.acquire();
+
+	    if (file != null) {
+		if (--file.openCount == 0) {
+		    flush(file);
+		    release(file);
+		}
+		file = null;
+	    }
+
+	    lock.release();
+	}
+
+	private File file;
+
+	/** Where a sequential read or write would continue. */
+	private int nextRead = 0, nextWrite = 0;
+	/** The first block not yet asked to be read ahead. */
+	private int readAheadTo = 0;
+	/** The first filled block not yet asked to be written behind. */
+	private int writeBehindFrom = 0;
+    }
+
+    private FileSystem fileSystem;
+    private int blockSize, numBlocks;
+    private int readAhead, writeBehind, maxTransfer;
+
+    /** The files that have cached blocks or are open, by name. */
+    private HashMap<String, File> files = new HashMap<String, File>();
+    /** The cached blocks, by file and block number. */
+    private HashMap<Long, Block> blocks = new HashMap<Long, Block>();
+    /** The cached blocks, least recently used first. */
+    private LinkedHashSet<Block> lru = new LinkedHashSet<Block>();
+    private int nextFileID = 0;
+
+    private Lock lock = new Lock();
+    /** Signalled whenever a busy block becomes idle. */
+    private Condition ioDone = new Condition(lock);
+
+    /** The thread that reads ahead and writes behind, once started. */
+    private KThread thread = null;
+    private LinkedList<Request> requests = new LinkedList<Request>();
+    private Condition requestReady = new Condition(lock);
+
+    private static final char dbgCache = 'f';
+}
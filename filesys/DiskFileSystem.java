@@ -0,0 +1,952 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.BitSet;
+import java.util.StringTokenizer;
+import java.util.TreeMap;
+
+/**
+ * A file system stored on the machine's simulated disk, so that all of its
+ * I/O is charged to the disk instead of going to host files.
+ *
+ * <p>
+ * The disk holds, in order, a superblock, a bitmap of used sectors, a table
+ * of inodes, and the data sectors. Each inode records a file's length and
+ * up to <tt>maxExtents</tt> extents, runs of consecutive sectors holding the
+ * file's data. A growing file extends its last extent in place when it can,
+ * and otherwise starts a new extent, asking for as many sectors as the file
+ * already has (up to <tt>DiskFileSystem.maxPrealloc</tt>) so that the number
+ * of extents grows only with the logarithm of the file's size. Sectors past
+ * the end of a file are given back when its last <tt>OpenFile</tt> is
+ * closed.
+ *
+ * <p>
+ * There is one directory, stored in inode 0 as a hash table of fixed-size
+ * entries with linear probing, so finding a name reads a single directory
+ * sector in the common case. Removed entries are left as tombstones so that
+ * later entries in a probe sequence can still be found.
+ *
+ * <p>
+ * The bitmap and the inode table are kept in memory once the disk is
+ * mounted, and so are directory sectors once they have been read. File data
+ * is read and written with the file system's lock released, so transfers
+ * for several threads can be queued at the disk together. A file's sectors
+ * are not freed while a transfer to them is under way, and writes to one
+ * file are made one at a time. The
+ * sectors each operation changes are committed through a <tt>Journal</tt>
+ * of <tt>DiskFileSystem.journalSectors</tt> sectors between the inode table
+ * and the data before the operation returns, so concurrent operations share
+ * log writes and metadata is written in place only at checkpoints. The
+ * journal is replayed when the disk is mounted at boot. Sectors a file gives
+ * up are not reused until the transaction freeing them is in the log, so a
+ * crash cannot leave them holding another file's data.
+ *
+ * <p>
+ * To use it, set <tt>Machine.disk</tt> to <tt>true</tt> and
+ * <tt>ThreadedKernel.fileSystem</tt> to
+ * <tt>nachos.filesys.DiskFileSystem</tt>. A disk that does not hold a file
+ * system is formatted when it is first used, as is any disk if
+ * <tt>DiskFileSystem.format</tt> is <tt>true</tt>. Files named in
+ * <tt>DiskFileSystem.importFiles</tt>, a quoted list separated by spaces,
+ * that are missing from the disk are copied in from the stub file system
+ * when it is mounted.
+ */
+public class DiskFileSystem implements FileSystem, Syncable {
+    /**
+     * Allocate a new file system on the machine's disk. The disk is mounted
+     * when the file system is first used, since reading it has to block.
+     */
+    public DiskFileSystem() {
+	this(Machine.disk());
+    }
+
+    /**
+     * Allocate a new file system on the specified disk.
+     *
+     * @param	disk	the disk holding the file system.
+     */
+    public DiskFileSystem(Disk disk) {
+	Lib.assertTrue(disk != null, "DiskFileSystem needs Machine.disk");
+	this.disk = disk;
+
+	numInodes = Config.getInteger("DiskFileSystem.numInodes", 128);
+	numInodes = (numInodes+inodesPerSector-1)
+	    / inodesPerSector * inodesPerSector;
+	directorySlots = Config.getInteger("DiskFileSystem.directorySize", 256);
+	directorySlots = (directorySlots+slotsPerSector-1)
+	    / slotsPerSector * slotsPerSector;
+	maxPrealloc = Config.getInteger("DiskFileSystem.maxPrealloc", 64);
+	journalSectors = Config.getInteger("DiskFileSystem.journalSectors", 128);
+    }
+
+    public OpenFile open(String name, boolean truncate) {
+	if (!checkName(name))
+	    return null;
+
+	lock.acquire();
+	mount();
+
+	OpenFile file = openLocked(name, truncate);
+	long seq = commit();
+
+	lock.release();
+	journal.waitDurable(seq);
+	return file;
+    }
+
+    /**
+     * Wait until every change made so far is in the journal.
+     */
+    public void sync() {
+	if (journal != null)
+	    journal.waitAll();
+    }
+
+    private OpenFile openLocked(String name, boolean truncate) {
+	int slot = lookup(name);
+	Inode inode;
+
+	if (slot != -1) {
+	    inode = inodes[slotInode(slot)];
+	    if (truncate) {
+		if (inode.transfers > 0) {
+		    // the directory may change while we wait, so look again
+		    transferDone.sleep();
+		    return openLocked(name, truncate);
+		}
+
+		freeSectors(inode, 0);
+		inode.length = 0;
+		markInode(inode);
+	    }
+	}
+	else {
+	    if (!truncate)
+		return null;
+
+	    inode = allocateInode();
+	    if (inode == null || !insert(name, inode.number)) {
+		if (inode != null)
+		    freeInode(inode);
+		Lib.debug(dbgDisk, "no room to create " + name);
+		return null;
+	    }
+	}
+
+	inode.openCount++;
+	return new DiskOpenFile(name, inode);
+    }
+
+    public boolean remove(String name) {
+	if (!checkName(name))
+	    return false;
+
+	lock.acquire();
+	mount();
+
+	int slot = lookup(name);
+	if (slot != -1) {
+	    Inode inode = inodes[slotInode(slot)];
+	    setSlot(slot, null, tombstone);
+
+	    // an open file is freed when it is last closed
+	    if (inode.openCount > 0)
+		inode.unlinked = true;
+	    else
+		freeInode(inode);
+	}
+
+	long seq = commit();
+
+	lock.release();
+	journal.waitDurable(seq);
+	return slot != -1;
+    }
+
+    /**
+     * Read the file system off the disk, formatting the disk first if it
+     * does not hold one. Does nothing once mounted, but waits if another
+     * thread is still mounting. The changes made by importing files are left
+     * for the caller's <tt>commit()</tt>. The lock must be held.
+     */
+    private void mount() {
+	// importing gives up the lock around data transfers, so nothing else
+	// may run on the half-imported file system meanwhile
+	while (mounting)
+	    mountDone.sleep();
+
+	if (inodes != null)
+	    return;
+
+	mounting = true;
+
+	synchDisk = new SynchDisk(disk);
+	numSectors = disk.getNumSectors();
+
+	bitmapStart = 1;
+	bitmapSectors = (numSectors + bitsPerSector-1) / bitsPerSector;
+	inodeStart = bitmapStart + bitmapSectors;
+	journalStart = inodeStart + numInodes/inodesPerSector;
+	dataStart = journalStart + journalSectors;
+	directorySectors = directorySlots/slotsPerSector;
+	Lib.assertTrue(dataStart + directorySectors < numSectors,
+		       "disk too small for the file system");
+
+	// a transaction can hold every metadata sector, plus its header
+	Lib.assertTrue(journalSectors > bitmapSectors + numInodes/inodesPerSector
+		       + directorySectors + 2, "journal too small");
+	journal = new Journal(synchDisk, journalStart, journalSectors);
+
+	byte[] superblock = new byte[sectorSize];
+	synchDisk.read(0, 1, superblock, 0);
+
+	if (Config.getBoolean("DiskFileSystem.format", false)
+	    || !checkSuperblock(superblock)) {
+	    format();
+	}
+	else {
+	    journal.replay();
+	    load();
+	}
+
+	importFiles();
+
+	mounting = false;
+	mountDone.wakeAll();
+    }
+
+    private boolean checkSuperblock(byte[] superblock) {
+	int[] expected = { magic, numSectors, bitmapStart, bitmapSectors,
+			   inodeStart, numInodes, journalStart, journalSectors,
+			   dataStart, directorySlots };
+
+	for (int i=0; i<expected.length; i++) {
+	    if (Lib.bytesToInt(superblock, i*4) != expected[i])
+		return false;
+	}
+	return true;
+    }
+
+    private void format() {
+	Lib.debug(dbgDisk, "formatting disk");
+
+	used = new BitSet(numSectors);
+	used.set(0, dataStart);
+
+	inodes = new Inode[numInodes];
+	for (int i=0; i<numInodes; i++)
+	    inodes[i] = new Inode(i);
+
+	// the directory is one extent, so entry i is in sector i/slotsPerSector
+	Inode root = inodes[rootInode];
+	root.type = typeDirectory;
+	root.length = directorySlots*slotSize;
+	root.numExtents = 1;
+	root.start[0] = dataStart;
+	root.count[0] = directorySectors;
+	used.set(dataStart, dataStart+directorySectors);
+
+	directory = new byte[directorySectors][];
+	for (int i=0; i<directorySectors; i++) {
+	    directory[i] = new byte[sectorSize];
+	    dirtyDirectory.set(i);
+	}
+
+	dirtyBitmap.set(0, bitmapSectors);
+	dirtyInodes.set(0, numInodes/inodesPerSector);
+	synchDisk.write(collectDirty());
+	journal.format();
+
+	// write the superblock last, so a format that is cut short is redone
+	byte[] superblock = new byte[sectorSize];
+	int[] fields = { magic, numSectors, bitmapStart, bitmapSectors,
+			 inodeStart, numInodes, journalStart, journalSectors,
+			 dataStart, directorySlots };
+	for (int i=0; i<fields.length; i++)
+	    Lib.bytesFromInt(superblock, i*4, fields[i]);
+	synchDisk.write(0, 1, superblock, 0);
+    }
+
+    private void load() {
+	byte[] bitmap = new byte[bitmapSectors*sectorSize];
+	synchDisk.read(bitmapStart, bitmapSectors, bitmap, 0);
+
+	used = new BitSet(numSectors);
+	for (int i=0; i<numSectors; i++) {
+	    if ((bitmap[i/8] & (1 << (i%8))) != 0)
+		used.set(i);
+	}
+
+	int inodeSectors = numInodes/inodesPerSector;
+	byte[] table = new byte[inodeSectors*sectorSize];
+	synchDisk.read(inodeStart, inodeSectors, table, 0);
+
+	inodes = new Inode[numInodes];
+	for (int i=0; i<numInodes; i++) {
+	    inodes[i] = new Inode(i);
+	    inodes[i].load(table, i*inodeSize);
+	}
+
+	directory = new byte[directorySectors][];
+    }
+
+    private void importFiles() {
+	String names = Config.getString("DiskFileSystem.importFiles", "");
+	FileSystem stub = Machine.stubFileSystem();
+
+	StringTokenizer st = new StringTokenizer(names);
+	while (st.hasMoreTokens()) {
+	    String name = st.nextToken();
+	    if (!checkName(name) || lookup(name) != -1 || stub == null)
+		continue;
+
+	    OpenFile source = stub.open(name, false);
+	    if (source == null)
+		continue;
+
+	    Lib.debug(dbgDisk, "importing " + name);
+
+	    byte[] data = new byte[source.length()];
+	    int amount = source.read(0, data, 0, data.length);
+	    source.close();
+
+	    OpenFile file = openLocked(name, true);
+	    if (file != null) {
+		DiskOpenFile diskFile = (DiskOpenFile) file;
+		if (amount > 0)
+		    writeData(diskFile.inode, 0, data, 0, amount);
+		closeInode(diskFile.inode);
+	    }
+	}
+    }
+
+    /**
+     * Hand every metadata sector changed by the current operation to the
+     * journal. The caller must pass the result to
+     * <tt>journal.waitDurable()</tt>, normally after releasing the lock so
+     * that other operations can join the same transaction.
+     *
+     * @return	the sequence number of the transaction holding the changes.
+     */
+    private long commit() {
+	long seq = journal.add(collectDirty());
+
+	// sectors freed by this operation still belong to their old file on
+	// disk until the transaction is in the log
+	if (!freed.isEmpty()) {
+	    reserved.or(freed);
+	    freed.clear();
+	    reservedUntil = seq;
+	}
+
+	return seq;
+    }
+
+    /**
+     * Return the current contents of every changed metadata sector, and
+     * forget that they changed.
+     */
+    private TreeMap<Integer, byte[]> collectDirty() {
+	TreeMap<Integer, byte[]> images = new TreeMap<Integer, byte[]>();
+
+	for (int i=dirtyBitmap.nextSetBit(0); i>=0;
+	     i=dirtyBitmap.nextSetBit(i+1))
+	    images.put(new Integer(bitmapStart+i), bitmapSector(i));
+	dirtyBitmap.clear();
+
+	for (int i=dirtyInodes.nextSetBit(0); i>=0;
+	     i=dirtyInodes.nextSetBit(i+1))
+	    images.put(new Integer(inodeStart+i), inodeSector(i));
+	dirtyInodes.clear();
+
+	for (int i=dirtyDirectory.nextSetBit(0); i>=0;
+	     i=dirtyDirectory.nextSetBit(i+1)) {
+	    byte[] image = new byte[sectorSize];
+	    System.arraycopy(directory[i], 0, image, 0, sectorSize);
+	    images.put(new Integer(dataStart+i), image);
+	}
+	dirtyDirectory.clear();
+
+	return images;
+    }
+
+    private byte[] bitmapSector(int index) {
+	byte[] data = new byte[sectorSize];
+	int first = index*bitsPerSector;
+	for (int i=used.nextSetBit(first); i>=0 && i<first+bitsPerSector;
+	     i=used.nextSetBit(i+1))
+	    data[(i-first)/8] |= (byte) (1 << ((i-first)%8));
+	return data;
+    }
+
+    private byte[] inodeSector(int index) {
+	byte[] data = new byte[sectorSize];
+	for (int i=0; i<inodesPerSector; i++)
+	    inodes[index*inodesPerSector + i].store(data, i*inodeSize);
+	return data;
+    }
+
+    private void markInode(Inode inode) {
+	dirtyInodes.set(inode.number/inodesPerSector);
+    }
+
+    private void markSectors(int first, int count) {
+	dirtyBitmap.set(first/bitsPerSector, (first+count-1)/bitsPerSector + 1);
+    }
+
+    private Inode allocateInode() {
+	for (int i=rootInode+1; i<numInodes; i++) {
+	    if (inodes[i].type == typeFree) {
+		Inode inode = inodes[i];
+		inode.type = typeFile;
+		inode.length = 0;
+		inode.numExtents = 0;
+		inode.unlinked = false;
+		markInode(inode);
+		return inode;
+	    }
+	}
+
+	return null;
+    }
+
+    private void freeInode(Inode inode) {
+	freeSectors(inode, 0);
+	inode.type = typeFree;
+	inode.length = 0;
+	markInode(inode);
+    }
+
+    /**
+     * Make sure a file has at least the specified number of sectors,
+     * allocating new ones past its last extent.
+     *
+     * @return	<tt>false</tt> if the disk is full or the file has too many
+     *		extents.
+     */
+    private boolean reserve(Inode inode, int sectors) {
+	int have = inode.numSectors();
+	if (have >= sectors)
+	    return true;
+
+	if (!reserved.isEmpty() && journal.getDurableSeq() >= reservedUntil)
+	    reserved.clear();
+
+	BitSet taken = (BitSet) used.clone();
+	taken.or(reserved);
+
+	while (have < sectors) {
+	    int want = Math.max(sectors-have, Math.min(have, maxPrealloc));
+
+	    // grow the last extent in place if the sectors after it are free
+	    if (inode.numExtents > 0) {
+		int last = inode.numExtents-1;
+		int next = inode.start[last] + inode.count[last];
+		int take = 0;
+		while (take < want && next+take < numSectors
+		       && !taken.get(next+take))
+		    take++;
+
+		if (take > 0) {
+		    used.set(next, next+take);
+		    taken.set(next, next+take);
+		    markSectors(next, take);
+		    inode.count[last] += take;
+		    have += take;
+		    markInode(inode);
+		    continue;
+		}
+	    }
+
+	    if (inode.numExtents == maxExtents)
+		return false;
+
+	    int hint = dataStart;
+	    if (inode.numExtents > 0) {
+		int last = inode.numExtents-1;
+		hint = inode.start[last] + inode.count[last];
+	    }
+
+	    int start = findRun(taken, hint, want);
+	    if (start == -1)
+		return false;
+
+	    int end = taken.nextSetBit(start);
+	    if (end == -1 || end > numSectors)
+		end = numSectors;
+	    int take = Math.min(want, end-start);
+
+	    used.set(start, start+take);
+	    taken.set(start, start+take);
+	    markSectors(start, take);
+	    inode.start[inode.numExtents] = start;
+	    inode.count[inode.numExtents] = take;
+	    inode.numExtents++;
+	    have += take;
+	    markInode(inode);
+	}
+
+	return true;
+    }
+
+    /**
+     * Find the first run of free sectors at least <tt>want</tt> long,
+     * looking from <tt>hint</tt> and then from the start of the data
+     * sectors, or the longest run if there is none that long.
+     *
+     * @return	the first sector of the run, or -1 if the disk is full.
+     */
+    private int findRun(BitSet taken, int hint, int want) {
+	int best = -1, bestLength = 0;
+
+	for (int pass=0; pass<2; pass++) {
+	    int from = (pass == 0) ? hint : dataStart;
+	    int to = (pass == 0) ? numSectors : hint;
+
+	    int start = taken.nextClearBit(from);
+	    while (start < to) {
+		int end = taken.nextSetBit(start);
+		if (end == -1 || end > numSectors)
+		    end = numSectors;
+
+		if (end-start >= want)
+		    return start;
+		if (end-start > bestLength) {
+		    best = start;
+		    bestLength = end-start;
+		}
+
+		start = taken.nextClearBit(end);
+	    }
+	}
+
+	return best;
+    }
+
+    /**
+     * Give back the sectors of a file past the first <tt>keep</tt>.
+     */
+    private void freeSectors(Inode inode, int keep) {
+	int excess = inode.numSectors() - keep;
+
+	while (excess > 0) {
+	    int last = inode.numExtents-1;
+	    int drop = Math.min(excess, inode.count[last]);
+	    int first = inode.start[last] + inode.count[last] - drop;
+
+	    used.clear(first, first+drop);
+	    freed.set(first, first+drop);
+	    markSectors(first, drop);
+	    inode.count[last] -= drop;
+	    if (inode.count[last] == 0)
+		inode.numExtents--;
+	    excess -= drop;
+	}
+
+	markInode(inode);
+    }
+
+    private int readData(Inode inode, int pos, byte[] buf, int offset,
+			 int length) {
+	if (pos >= inode.length)
+	    return 0;
+	length = Math.min(length, inode.length-pos);
+
+	int amount = 0;
+	while (amount < length) {
+	    int filePos = pos+amount;
+	    int skip = filePos % sectorSize;
+	    int[] run = inode.map(filePos/sectorSize);
+
+	    int sectors = Math.min(run[1],
+				   (skip + length-amount + sectorSize-1)
+				   / sectorSize);
+	    byte[] data = new byte[sectors*sectorSize];
+	    transfer(inode, false, run[0], sectors, data, 0);
+
+	    int count = Math.min(length-amount, sectors*sectorSize - skip);
+	    System.arraycopy(data, skip, buf, offset+amount, count);
+	    amount += count;
+	}
+
+	return amount;
+    }
+
+    private int writeData(Inode inode, int pos, byte[] buf, int offset,
+			  int length) {
+	// fill any gap past the end with zeros, since its sectors may hold
+	// old data
+	if (pos > inode.length
+	    && writeData(inode, inode.length, new byte[pos-inode.length], 0,
+			 pos-inode.length) == -1)
+	    return -1;
+
+	int end = pos+length;
+	if (!reserve(inode, (end + sectorSize-1) / sectorSize))
+	    return -1;
+
+	int amount = 0;
+	while (amount < length) {
+	    int filePos = pos+amount;
+	    int index = filePos/sectorSize;
+	    int skip = filePos % sectorSize;
+	    int[] run = inode.map(index);
+
+	    int sectors = Math.min(run[1],
+				   (skip + length-amount + sectorSize-1)
+				   / sectorSize);
+	    int count = Math.min(length-amount, sectors*sectorSize - skip);
+	    byte[] data = new byte[sectors*sectorSize];
+
+	    // keep the old contents of partly written sectors
+	    int lastIndex = index+sectors-1;
+	    if (skip != 0 && index*sectorSize < inode.length)
+		transfer(inode, false, run[0], 1, data, 0);
+	    if ((skip+count) % sectorSize != 0
+		&& lastIndex*sectorSize < inode.length
+		&& !(lastIndex == index && skip != 0))
+		transfer(inode, false, run[0]+sectors-1, 1, data,
+			 (sectors-1)*sectorSize);
+
+	    System.arraycopy(buf, offset+amount, data, skip, count);
+	    transfer(inode, true, run[0], sectors, data, 0);
+	    amount += count;
+	}
+
+	if (end > inode.length) {
+	    inode.length = end;
+	    markInode(inode);
+	}
+
+	return length;
+    }
+
+    /**
+     * Read or write a run of a file's sectors, releasing the lock meanwhile
+     * so that other threads can queue their own transfers. The file's
+     * sectors are not freed until the transfer is done.
+     */
+    private void transfer(Inode inode, boolean write, int sector, int count,
+			  byte[] data, int offset) {
+	inode.transfers++;
+	lock.release();
+
+	if (write)
+	    synchDisk.write(sector, count, data, offset);
+	else
+	    synchDisk.read(sector, count, data, offset);
+
+	lock.acquire();
+	if (--inode.transfers == 0)
+	    transferDone.wakeAll();
+    }
+
+    /**
+     * Note that an <tt>OpenFile</tt> for an inode was closed, trimming or
+     * freeing it once it is no longer open.
+     */
+    private void closeInode(Inode inode) {
+	if (--inode.openCount > 0)
+	    return;
+
+	if (inode.unlinked)
+	    freeInode(inode);
+	else if (inode.numSectors() > (inode.length+sectorSize-1)/sectorSize)
+	    freeSectors(inode, (inode.length+sectorSize-1)/sectorSize);
+    }
+
+    /**
+     * Return the directory slot holding the specified name.
+     *
+     * @return	the slot, or -1 if the name is not in the directory.
+     */
+    private int lookup(String name) {
+	int home = hash(name);
+
+	for (int i=0; i<directorySlots; i++) {
+	    int slot = (home+i) % directorySlots;
+	    int inumber = slotInode(slot);
+
+	    if (inumber == empty)
+		return -1;
+	    if (inumber != tombstone && name.equals(slotName(slot)))
+		return slot;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Add a name to the directory, reusing the first empty slot or tombstone
+     * along its probe sequence.
+     *
+     * @return	<tt>false</tt> if the directory is full.
+     */
+    private boolean insert(String name, int inumber) {
+	int home = hash(name);
+
+	for (int i=0; i<directorySlots; i++) {
+	    int slot = (home+i) % directorySlots;
+	    int current = slotInode(slot);
+
+	    if (current == empty || current == tombstone) {
+		setSlot(slot, name, inumber);
+		return true;
+	    }
+	}
+
+	return false;
+    }
+
+    private int hash(String name) {
+	return (name.hashCode() & 0x7FFFFFFF) % directorySlots;
+    }
+
+    private byte[] directorySector(int slot) {
+	int index = slot/slotsPerSector;
+	if (directory[index] == null) {
+	    directory[index] = new byte[sectorSize];
+	    synchDisk.read(dataStart+index, 1, directory[index], 0);
+	}
+	return directory[index];
+    }
+
+    private int slotInode(int slot) {
+	return Lib.bytesToInt(directorySector(slot),
+			      (slot%slotsPerSector)*slotSize);
+    }
+
+    private String slotName(int slot) {
+	byte[] data = directorySector(slot);
+	int offset = (slot%slotsPerSector)*slotSize + 4;
+
+	int length = 0;
+	while (length < maxNameLength && data[offset+length] != 0)
+	    length++;
+
+	return new String(data, offset, length);
+    }
+
+    private void setSlot(int slot, String name, int inumber) {
+	byte[] data = directorySector(slot);
+	int offset = (slot%slotsPerSector)*slotSize;
+
+	Lib.bytesFromInt(data, offset, inumber);
+	for (int i=0; i<maxNameLength; i++)
+	    data[offset+4+i] = 0;
+	if (name != null) {
+	    byte[] bytes = name.getBytes();
+	    System.arraycopy(bytes, 0, data, offset+4, bytes.length);
+	}
+
+	dirtyDirectory.set(slot/slotsPerSector);
+    }
+
+    private static boolean checkName(String name) {
+	if (name.length() == 0 || name.length() > maxNameLength)
+	    return false;
+
+	for (int i=0; i<name.length(); i++) {
+	    char c = name.charAt(i);
+	    if (c <= ' ' || c >= 0x7F || c == '/')
+		return false;
+	}
+	return true;
+    }
+
+    /**
+     * An inode, as kept in memory while the disk is mounted.
+     */
+    private class Inode {
+	Inode(int number) {
+	    this.number = number;
+	}
+
+	void load(byte[] data, int offset) {
+	    type = Lib.bytesToInt(data, offset);
+	    length = Lib.bytesToInt(data, offset+4);
+	    numExtents = Lib.bytesToInt(data, offset+8);
+	    for (int i=0; i<numExtents; i++) {
+		start[i] = Lib.bytesToInt(data, offset+12 + i*8);
+		count[i] = Lib.bytesToInt(data, offset+16 + i*8);
+	    }
+	}
+
+	void store(byte[] data, int offset) {
+	    Lib.bytesFromInt(data, offset, type);
+	    Lib.bytesFromInt(data, offset+4, length);
+	    Lib.bytesFromInt(data, offset+8, numExtents);
+	    for (int i=0; i<numExtents; i++) {
+		Lib.bytesFromInt(data, offset+12 + i*8, start[i]);
+		Lib.bytesFromInt(data, offset+16 + i*8, count[i]);
+	    }
+	}
+
+	int numSectors() {
+	    int sectors = 0;
+	    for (int i=0; i<numExtents; i++)
+		sectors += count[i];
+	    return sectors;
+	}
+
+	/**
+	 * Return the disk sector holding a sector of this file, and the
+	 * number of sectors of the file that follow it in the same extent,
+	 * itself included.
+	 */
+	int[] map(int index) {
+	    for (int i=0; i<numExtents; i++) {
+		if (index < count[i])
+		    return new int[] { start[i]+index, count[i]-index };
+		index -= count[i];
+	    }
+
+	    Lib.assertNotReached("sector past the end of a file");
+	    return null;
+	}
+
+	int number;
+	int type = typeFree;
+	int length = 0;
+	int numExtents = 0;
+	int[] start = new int[maxExtents];
+	int[] count = new int[maxExtents];
+
+	/** The number of <tt>OpenFile</tt>s for this inode. */
+	int openCount = 0;
+	/** The number of transfers to this file's sectors under way. */
+	int transfers = 0;
+	/** Set while a write to this file is under way. */
+	boolean writing = false;
+	/** Set if the file was removed while open. */
+	boolean unlinked = false;
+    }
+
+    private class DiskOpenFile extends OpenFileWithPosition {
+	DiskOpenFile(String name, Inode inode) {
+	    super(DiskFileSystem.this, name);
+	    this.inode = inode;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (pos < 0 || offset < 0 || length < 0
+		|| offset+length > buf.length)
+		return -1;
+
+	    lock.acquire();
+	    int amount = (inode == null) ? -1
+		: readData(inode, pos, buf, offset, length);
+	    lock.release();
+
+	    return amount;
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    if (pos < 0 || offset < 0 || length < 0
+		|| offset+length > buf.length)
+		return -1;
+
+	    lock.acquire();
+
+	    // two writers must not read and write back the same sector at once
+	    while (inode != null && inode.writing)
+		transferDone.sleep();
+
+	    int amount = -1;
+	    if (inode != null) {
+		Inode file = inode;
+		file.writing = true;
+		amount = writeData(file, pos, buf, offset, length);
+		file.writing = false;
+		transferDone.wakeAll();
+	    }
+	    // a write joins the running transaction without waiting for it;
+	    // the file's changes are durable once it is closed
+	    lastSeq = Math.max(lastSeq, commit());
+	    lock.release();
+
+	    return amount;
+	}
+
+	public int length() {
+	    return (inode == null) ? -1 : inode.length;
+	}
+
+	public void close() {
+	    lock.acquire();
+
+	    // another thread sharing this file may still be reading or writing
+	    // it, and the last close can free its sectors
+	    while (inode != null && inode.openCount == 1
+		   && (inode.transfers > 0 || inode.writing))
+		transferDone.sleep();
+
+	    long seq = lastSeq;
+	    if (inode != null) {
+		closeInode(inode);
+		inode = null;
+		seq = Math.max(seq, commit());
+	    }
+
+	    lock.release();
+	    journal.waitDurable(seq);
+	}
+
+	Inode inode;
+	/** The last transaction holding a write to this file. */
+	long lastSeq = -1;
+    }
+
+    private Disk disk;
+    private SynchDisk synchDisk = null;
+    private Lock lock = new Lock();
+    /** Signalled when a file's last transfer or write finishes. */
+    private Condition transferDone = new Condition(lock);
+    /** True while the disk is being mounted, and files imported. */
+    private boolean mounting = false;
+    /** Signalled when mounting finishes. */
+    private Condition mountDone = new Condition(lock);
+
+    private int numSectors, numInodes, directorySlots, maxPrealloc;
+    private int bitmapStart, bitmapSectors, inodeStart, dataStart;
+    private int journalStart, journalSectors;
+    private Journal journal = null;
+    private int directorySectors;
+
+    /** The sectors in use, or <tt>null</tt> until mounted. */
+    private BitSet used = null;
+    /** The inode table, or <tt>null</tt> until mounted. */
+    private Inode[] inodes = null;
+    /** The directory sectors that have been read, by index. */
+    private byte[][] directory = null;
+
+    /** The metadata sectors changed by the current operation. */
+    private BitSet dirtyBitmap = new BitSet(), dirtyInodes = new BitSet(),
+	dirtyDirectory = new BitSet();
+    /** The sectors freed by the current operation. */
+    private BitSet freed = new BitSet();
+    /** Freed sectors that cannot be reused until transaction
+     *  <tt>reservedUntil</tt> is in the log. */
+    private BitSet reserved = new BitSet();
+    private long reservedUntil = 0;
+
+    private static final int sectorSize = Disk.sectorSize;
+    private static final int magic = 0x4E414348;
+    private static final int bitsPerSector = sectorSize*8;
+
+    private static final int maxExtents = 14;
+    private static final int inodeSize = 128;
+    private static final int inodesPerSector = sectorSize/inodeSize;
+    private static final int rootInode = 0;
+    private static final int typeFree = 0, typeFile = 1, typeDirectory = 2;
+
+    private static final int slotSize = 32;
+    private static final int slotsPerSector = sectorSize/slotSize;
+    private static final int maxNameLength = slotSize-4;
+    /** Directory slot inode numbers that mark an unused slot. */
+    private static final int empty = 0, tombstone = -1;
+
+    private static final char dbgDisk = 'k';
+}
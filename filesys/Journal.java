@@ -0,0 +1,319 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead log of metadata sectors, kept in a region of the disk. A file
+ * system hands the journal the new contents of the sectors each operation
+ * changed, and the journal makes them durable by appending them to the log
+ * as one transaction before they are written in place.
+ *
+ * <p>
+ * Operations that arrive while the log is being written join the next
+ * transaction, which the first of them writes as soon as the disk is free,
+ * so one log write can commit many operations. A sector changed by several
+ * of them is logged once, with its latest contents.
+ *
+ * <p>
+ * Logged sectors are only written in place at a checkpoint, when the log is
+ * full, after which the log starts again from its beginning. When the disk
+ * is mounted, every complete transaction still in the log is written in
+ * place, so metadata is never left half updated.
+ *
+ * <p>
+ * The first sector of the log holds the sequence number of the first
+ * transaction after it. Each transaction is a header, listing the sectors it
+ * holds and a checksum, followed by their contents, all written in a single
+ * disk request.
+ */
+public class Journal {
+    /**
+     * Allocate a new journal in a region of a disk.
+     *
+     * @param	disk	the disk holding the log.
+     * @param	start	the first sector of the log.
+     * @param	sectors	the number of sectors in the log.
+     */
+    public Journal(SynchDisk disk, int start, int sectors) {
+	Lib.assertTrue(sectors > 2);
+
+	this.disk = disk;
+	this.start = start;
+	this.sectors = sectors;
+    }
+
+    /**
+     * Start an empty log.
+     */
+    public void format() {
+	lock.acquire();
+
+	nextSeq = durableSeq+1;
+	writeHead(nextSeq);
+
+	lock.release();
+    }
+
+    /**
+     * Write every complete transaction in the log in place, and start an
+     * empty log.
+     *
+     * @return	the number of transactions written.
+     */
+    public int replay() {
+	lock.acquire();
+
+	byte[] head = new byte[sectorSize];
+	disk.read(start, 1, head, 0);
+
+	int replayed = 0;
+	if (Lib.bytesToInt(head, 0) == headMagic) {
+	    long seq = Lib.bytesToInt(head, 4) & 0xFFFFFFFFL;
+	    int position = start+1;
+
+	    TreeMap<Integer, byte[]> images;
+	    while ((images = readTransaction(position, seq)) != null) {
+		disk.write(images);
+
+		position += headerSectors(images.size()) + images.size();
+		seq++;
+		replayed++;
+	    }
+
+	    durableSeq = seq-1;
+	}
+
+	nextSeq = durableSeq+1;
+	writeHead(nextSeq);
+
+	lock.release();
+
+	if (replayed > 0)
+	    Lib.debug(dbgJournal, "replayed " + replayed + " transactions");
+	return replayed;
+    }
+
+    /**
+     * Return the transaction with the specified sequence number at a
+     * position in the log, or <tt>null</tt> if it is not there or was not
+     * completely written.
+     */
+    private TreeMap<Integer, byte[]> readTransaction(int position, long seq) {
+	if (position >= start+sectors)
+	    return null;
+
+	byte[] header = new byte[sectorSize];
+	disk.read(position, 1, header, 0);
+
+	int count = Lib.bytesToInt(header, 8);
+	if (Lib.bytesToInt(header, 0) != transactionMagic
+	    || (Lib.bytesToInt(header, 4) & 0xFFFFFFFFL) != (seq & 0xFFFFFFFFL)
+	    || count <= 0
+	    || position + headerSectors(count) + count > start+sectors)
+	    return null;
+
+	int length = headerSectors(count) + count;
+	byte[] record = new byte[length*sectorSize];
+	disk.read(position, length, record, 0);
+
+	int checksum = Lib.bytesToInt(record, 12);
+	Lib.bytesFromInt(record, 12, 0);
+	if (checksum(record) != checksum)
+	    return null;
+
+	TreeMap<Integer, byte[]> images = new TreeMap<Integer, byte[]>();
+	int offset = headerSectors(count)*sectorSize;
+	for (int i=0; i<count; i++) {
+	    byte[] image = new byte[sectorSize];
+	    System.arraycopy(record, offset + i*sectorSize, image, 0,
+			     sectorSize);
+	    images.put(new Integer(Lib.bytesToInt(record, 16 + i*4)), image);
+	}
+
+	return images;
+    }
+
+    /**
+     * Add the new contents of some sectors to the running transaction. The
+     * caller must then pass the returned sequence number to
+     * <tt>waitDurable()</tt> before relying on the change.
+     *
+     * @param	images	the new contents of each changed sector.
+     * @return	the sequence number of the transaction holding the change.
+     */
+    public long add(Map<Integer, byte[]> images) {
+	lock.acquire();
+
+	long seq;
+	if (images.isEmpty()) {
+	    seq = durableSeq;
+	}
+	else {
+	    running.putAll(images);
+	    runningOperations++;
+	    seq = nextSeq;
+	}
+
+	lock.release();
+	return seq;
+    }
+
+    /**
+     * Wait until a transaction is in the log, writing it if no one else is
+     * writing the log.
+     *
+     * @param	seq	the sequence number returned by <tt>add()</tt>.
+     */
+    public void waitDurable(long seq) {
+	lock.acquire();
+
+	while (durableSeq < seq) {
+	    if (flushing)
+		flushDone.sleep();
+	    else
+		flush();
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Wait until every transaction added so far is in the log.
+     */
+    public void waitAll() {
+	lock.acquire();
+	long seq = running.isEmpty() ? nextSeq-1 : nextSeq;
+	lock.release();
+
+	waitDurable(seq);
+    }
+
+    /**
+     * Return the sequence number of the last transaction in the log.
+     *
+     * @return	the sequence number.
+     */
+    public long getDurableSeq() {
+	return durableSeq;
+    }
+
+    /**
+     * Write the running transaction to the log. The journal lock is released
+     * while the disk is busy.
+     */
+    private void flush() {
+	flushing = true;
+
+	TreeMap<Integer, byte[]> images = running;
+	int operations = runningOperations;
+	long seq = nextSeq++;
+	running = new TreeMap<Integer, byte[]>();
+	runningOperations = 0;
+
+	int count = images.size();
+	int length = headerSectors(count) + count;
+	Lib.assertTrue(length < sectors, "transaction larger than the log");
+
+	if (position + length > start+sectors)
+	    checkpoint(seq);
+
+	byte[] record = new byte[length*sectorSize];
+	Lib.bytesFromInt(record, 0, transactionMagic);
+	Lib.bytesFromInt(record, 4, (int) seq);
+	Lib.bytesFromInt(record, 8, count);
+
+	int i = 0;
+	int offset = headerSectors(count)*sectorSize;
+	for (Map.Entry<Integer, byte[]> entry : images.entrySet()) {
+	    Lib.bytesFromInt(record, 16 + i*4, entry.getKey().intValue());
+	    System.arraycopy(entry.getValue(), 0, record, offset + i*sectorSize,
+			     sectorSize);
+	    i++;
+	}
+	Lib.bytesFromInt(record, 12, checksum(record));
+
+	Lib.debug(dbgJournal, "committing transaction " + seq + ": "
+		  + count + " sectors for " + operations + " operations");
+
+	int at = position;
+	position += length;
+
+	lock.release();
+	disk.write(at, length, record, 0);
+	lock.acquire();
+
+	committed.putAll(images);
+	durableSeq = seq;
+	flushing = false;
+	flushDone.wakeAll();
+    }
+
+    /**
+     * Write every logged sector in place and empty the log, so the next
+     * transaction is written at its start. The journal lock is released
+     * while the disk is busy.
+     */
+    private void checkpoint(long nextInLog) {
+	Lib.debug(dbgJournal, "checkpointing " + committed.size() + " sectors");
+
+	TreeMap<Integer, byte[]> images = committed;
+	committed = new TreeMap<Integer, byte[]>();
+
+	lock.release();
+	disk.write(images);
+	lock.acquire();
+
+	writeHead(nextInLog);
+    }
+
+    private void writeHead(long seq) {
+	byte[] head = new byte[sectorSize];
+	Lib.bytesFromInt(head, 0, headMagic);
+	Lib.bytesFromInt(head, 4, (int) seq);
+	disk.write(start, 1, head, 0);
+
+	position = start+1;
+    }
+
+    private static int headerSectors(int count) {
+	return (16 + count*4 + sectorSize-1) / sectorSize;
+    }
+
+    private static int checksum(byte[] record) {
+	CRC32 crc = new CRC32();
+	crc.update(record, 0, record.length);
+	return (int) crc.getValue();
+    }
+
+    private SynchDisk disk;
+    private int start, sectors;
+
+    /** Where the next transaction goes in the log. */
+    private int position;
+    /** The sequence number the running transaction will get. */
+    private long nextSeq = 1;
+    /** The sequence number of the last transaction in the log. */
+    private long durableSeq = 0;
+    private boolean flushing = false;
+
+    /** The sectors changed since the last transaction was started. */
+    private TreeMap<Integer, byte[]> running = new TreeMap<Integer, byte[]>();
+    private int runningOperations = 0;
+    /** The sectors in the log but not yet written in place. */
+    private TreeMap<Integer, byte[]> committed =
+	new TreeMap<Integer, byte[]>();
+
+    private Lock lock = new Lock();
+    private Condition flushDone = new Condition(lock);
+
+    private static final int sectorSize = Disk.sectorSize;
+    private static final int headMagic = 0x4A524E4C;
+    private static final int transactionMagic = 0x54584E20;
+
+    private static final char dbgJournal = 'j';
+}
@@ -0,0 +1,14 @@
+package nachos.filesys;
+
+/**
+ * A file system that keeps changes in memory before they reach its backing
+ * store, and can be asked to write them out. <tt>FileSystem</tt> is part of
+ * the machine simulation, so file systems that need this implement it as
+ * well.
+ */
+public interface Syncable {
+    /**
+     * Write out every change made so far, waiting until it is done.
+     */
+    public void sync();
+}
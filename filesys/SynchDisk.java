@@ -0,0 +1,88 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Map;
+
+/**
+ * Provides a simple, synchronized interface to the machine's disk. Each call
+ * queues its requests with the disk and blocks the calling thread until the
+ * disk has finished them. Any number of threads may have requests queued at
+ * once, and the disk chooses the order in which to serve them.
+ */
+public class SynchDisk {
+    /**
+     * Allocate a new <tt>SynchDisk</tt>.
+     *
+     * @param	disk	the underlying disk to use.
+     */
+    public SynchDisk(Disk disk) {
+	this.disk = disk;
+    }
+
+    /**
+     * Return the underlying disk.
+     *
+     * @return	the disk.
+     */
+    public Disk getDisk() {
+	return disk;
+    }
+
+    /**
+     * Read a run of consecutive sectors, blocking until they have been read.
+     *
+     * @param	sector	the first sector to read.
+     * @param	count	the number of sectors to read.
+     * @param	data	the buffer to read into.
+     * @param	offset	the offset in the buffer of the first byte.
+     */
+    public void read(int sector, int count, byte[] data, int offset) {
+	Semaphore done = new Semaphore(0);
+	disk.readRequest(sector, count, data, offset, signaller(done));
+	done.P();
+    }
+
+    /**
+     * Write a run of consecutive sectors, blocking until they have been
+     * written.
+     *
+     * @param	sector	the first sector to write.
+     * @param	count	the number of sectors to write.
+     * @param	data	the buffer holding the data.
+     * @param	offset	the offset in the buffer of the first byte.
+     */
+    public void write(int sector, int count, byte[] data, int offset) {
+	Semaphore done = new Semaphore(0);
+	disk.writeRequest(sector, count, data, offset, signaller(done));
+	done.P();
+    }
+
+    /**
+     * Write a set of single sectors, blocking until all of them have been
+     * written. The writes are queued together, so the disk can order them
+     * and merge neighbouring sectors into one transfer.
+     *
+     * @param	images	the new contents of each sector to write.
+     */
+    public void write(Map<Integer, byte[]> images) {
+	Semaphore done = new Semaphore(0);
+	Runnable handler = signaller(done);
+
+	for (Map.Entry<Integer, byte[]> entry : images.entrySet())
+	    disk.writeRequest(entry.getKey().intValue(), 1, entry.getValue(), 0,
+			      handler);
+
+	for (int i=0; i<images.size(); i++)
+	    done.P();
+    }
+
+    private static Runnable signaller(final Semaphore done) {
+	return new Runnable() {
+		public void run() { done.V(); }
+	    };
+    }
+
+    private Disk disk;
+}
@@ -0,0 +1,318 @@
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A simulated disk, stored in an image file in the test directory. The disk
+ * has <tt>numTracks</tt> tracks of <tt>sectorsPerTrack</tt> sectors each.
+ * A request is a read or write of a run of consecutive sectors, and any
+ * number of requests may be queued at once. Each request names a handler,
+ * which the disk's interrupt calls when the request is done.
+ *
+ * <p>
+ * The disk does one transfer at a time, choosing the next request in C-SCAN
+ * order: the first at or after the sector the head is over, sweeping towards
+ * the end of the disk and then starting again from the lowest sector. A
+ * request that has waited <tt>Disk.deadline</tt> ticks is served before any
+ * other. Queued requests of the same kind that continue the chosen run are
+ * merged into the same transfer, up to <tt>Disk.maxMerge</tt> sectors. A
+ * request is never moved ahead of an earlier one it overlaps unless both are
+ * reads.
+ *
+ * <p>
+ * A request first waits for the head to seek to the track of its first
+ * sector, <tt>Stats.SeekTime</tt> for every track crossed, then for that
+ * sector to rotate under the head, and then for every sector of the run to
+ * pass under it. The disk turns once every <tt>Stats.RotationTime</tt>
+ * ticks, whether or not it is busy, so a request for the sector just past
+ * the head waits for almost a whole turn.
+ */
+public final class Disk {
+    /**
+     * Allocate a new disk.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	image		the file holding the contents of the disk.
+     */
+    public Disk(Privilege privilege, final File image) {
+	System.out.print(" disk");
+
+	this.privilege = privilege;
+
+	numTracks = Config.getInteger("Disk.numTracks", 64);
+	sectorsPerTrack = Config.getInteger("Disk.sectorsPerTrack", 32);
+	Lib.assertTrue(numTracks > 0 && sectorsPerTrack > 0);
+	numSectors = numTracks*sectorsPerTrack;
+	sectorTime = Math.max(1, Stats.RotationTime/sectorsPerTrack);
+	deadline = Config.getInteger("Disk.deadline", 50000);
+	maxMerge = Config.getInteger("Disk.maxMerge", 64);
+
+	privilege.doPrivileged(new Runnable() {
+	    public void run() { openImage(image); }
+	});
+	Lib.assertTrue(file != null, "unable to open disk image " + image);
+
+	interrupt = new Runnable() {
+		public void run() { interrupt(); }
+	    };
+    }
+
+    private void openImage(File image) {
+	try {
+	    file = new RandomAccessFile(image, "rw");
+	    if (file.length() < (long) numSectors*sectorSize)
+		file.setLength((long) numSectors*sectorSize);
+	}
+	catch (IOException e) {
+	    file = null;
+	}
+    }
+
+    /**
+     * Return the number of sectors on this disk.
+     *
+     * @return	the number of sectors.
+     */
+    public int getNumSectors() {
+	return numSectors;
+    }
+
+    /**
+     * Return the number of sectors in each track of this disk.
+     *
+     * @return	the number of sectors per track.
+     */
+    public int getSectorsPerTrack() {
+	return sectorsPerTrack;
+    }
+
+    /**
+     * Queue a read of a run of consecutive sectors. The data is stored when
+     * the disk interrupts, so the buffer must not be touched until then.
+     *
+     * @param	sector	the first sector to read.
+     * @param	count	the number of sectors to read.
+     * @param	data	the buffer to read into.
+     * @param	offset	the offset in the buffer of the first byte.
+     * @param	done	called by the disk's interrupt when the read is done.
+     */
+    public void readRequest(int sector, int count, byte[] data, int offset,
+			    Runnable done) {
+	request(sector, count, data, offset, false, done);
+    }
+
+    /**
+     * Queue a write of a run of consecutive sectors. The data is copied at
+     * once, so the buffer may be reused straight away.
+     *
+     * @param	sector	the first sector to write.
+     * @param	count	the number of sectors to write.
+     * @param	data	the buffer holding the data.
+     * @param	offset	the offset in the buffer of the first byte.
+     * @param	done	called by the disk's interrupt when the write is done.
+     */
+    public void writeRequest(int sector, int count, byte[] data, int offset,
+			     Runnable done) {
+	byte[] copy = new byte[count*sectorSize];
+	System.arraycopy(data, offset, copy, 0, copy.length);
+	request(sector, count, copy, 0, true, done);
+    }
+
+    private void request(int sector, int count, byte[] data, int offset,
+			 boolean write, Runnable done) {
+	Lib.assertTrue(count > 0 && sector >= 0 && sector+count <= numSectors);
+	Lib.assertTrue(offset >= 0 && offset+count*sectorSize <= data.length);
+
+	pending.add(new Request(sector, count, data, offset, write, done));
+
+	if (active == null)
+	    dispatch();
+    }
+
+    /**
+     * Start the next transfer: the oldest request if it has waited past its
+     * deadline, or else the first request at or after the head, wrapping to
+     * the lowest sector on the disk. Requests of the same kind that continue
+     * the run on either side are merged into the same transfer.
+     */
+    private void dispatch() {
+	if (pending.isEmpty())
+	    return;
+
+	long now = privilege.stats.totalTicks;
+
+	Request first = pending.getFirst();
+	if (now - first.arrival < deadline) {
+	    Request wrap = null;
+	    first = null;
+	    for (Request r : pending) {
+		if (!mayStart(r))
+		    continue;
+		if (r.sector >= headSector
+		    && (first == null || r.sector < first.sector))
+		    first = r;
+		if (wrap == null || r.sector < wrap.sector)
+		    wrap = r;
+	    }
+	    if (first == null)
+		first = wrap;
+	}
+
+	pending.remove(first);
+	active = new LinkedList<Request>();
+	active.add(first);
+
+	int start = first.sector, end = first.sector+first.count;
+	boolean merged = true;
+	while (merged) {
+	    merged = false;
+	    for (Iterator<Request> i=pending.iterator(); i.hasNext(); ) {
+		Request r = i.next();
+		if (r.write != first.write || end-start + r.count > maxMerge
+		    || (r.sector != end && r.sector+r.count != start)
+		    || !mayStart(r))
+		    continue;
+
+		i.remove();
+		if (r.sector == end) {
+		    active.addLast(r);
+		    end += r.count;
+		}
+		else {
+		    active.addFirst(r);
+		    start = r.sector;
+		}
+		merged = true;
+	    }
+	}
+
+	if (active.size() > 1)
+	    Lib.debug(dbgDisk, "merged " + active.size() + " requests into "
+		      + (end-start) + " sectors at " + start);
+
+	privilege.interrupt.schedule(latency(start, end-start),
+				     first.write ? "disk write" : "disk read",
+				     interrupt);
+    }
+
+    /**
+     * Return true if a request may go ahead of the requests queued before
+     * it, which it may not if it overlaps one of them and either is a write.
+     */
+    private boolean mayStart(Request request) {
+	for (Request r : pending) {
+	    if (r == request)
+		return true;
+	    if ((r.write || request.write)
+		&& r.sector < request.sector+request.count
+		&& request.sector < r.sector+r.count)
+		return false;
+	}
+
+	return true;
+    }
+
+    /**
+     * Return how long a transfer takes from now, and move the head to the
+     * track the transfer ends on.
+     */
+    private int latency(int sector, int count) {
+	int track = sector/sectorsPerTrack;
+	int seek = Math.abs(track-headTrack)*Stats.SeekTime;
+
+	long arrival = privilege.stats.totalTicks + seek;
+	int underHead = (int) ((arrival/sectorTime) % sectorsPerTrack);
+	int wait = (sector%sectorsPerTrack - underHead + sectorsPerTrack)
+	    % sectorsPerTrack;
+
+	int lastTrack = (sector+count-1)/sectorsPerTrack;
+	int crossings = (lastTrack-track)*Stats.SeekTime;
+
+	headTrack = lastTrack;
+	headSector = sector+count;
+	return seek + (wait+count)*sectorTime + crossings;
+    }
+
+    private void interrupt() {
+	Lib.assertTrue(active != null);
+
+	LinkedList<Request> done = active;
+	active = null;
+
+	for (Request r : done) {
+	    try {
+		file.seek((long) r.sector*sectorSize);
+		if (r.write) {
+		    file.write(r.data, r.offset, r.count*sectorSize);
+		    privilege.stats.numDiskWrites += r.count;
+		}
+		else {
+		    file.readFully(r.data, r.offset, r.count*sectorSize);
+		    privilege.stats.numDiskReads += r.count;
+		}
+	    }
+	    catch (IOException e) {
+		Lib.assertNotReached("disk image I/O failed");
+	    }
+	}
+
+	dispatch();
+
+	for (Request r : done) {
+	    if (r.done != null)
+		r.done.run();
+	}
+    }
+
+    private class Request {
+	Request(int sector, int count, byte[] data, int offset, boolean write,
+		Runnable done) {
+	    this.sector = sector;
+	    this.count = count;
+	    this.data = data;
+	    this.offset = offset;
+	    this.write = write;
+	    this.done = done;
+	    arrival = privilege.stats.totalTicks;
+	}
+
+	int sector, count, offset;
+	byte[] data;
+	boolean write;
+	Runnable done;
+	long arrival;
+    }
+
+    /** The number of bytes in a sector. */
+    public static final int sectorSize = 512;
+
+    private int numTracks, sectorsPerTrack, numSectors;
+    /** The time for one sector to pass under the head. */
+    private int sectorTime;
+    private int headTrack = 0;
+
+    /** The sector just past the end of the last transfer. */
+    private int headSector = 0;
+    /** How long a request may wait before it is served out of order. */
+    private int deadline;
+    /** The most sectors one merged transfer may hold. */
+    private int maxMerge;
+
+    /** Queued requests, oldest first. */
+    private LinkedList<Request> pending = new LinkedList<Request>();
+    /** The requests in the current transfer, or <tt>null</tt> if idle. */
+    private LinkedList<Request> active = null;
+
+    private RandomAccessFile file = null;
+    private Privilege privilege;
+    private Runnable interrupt;
+
+    private static final char dbgDisk = 'k';
+}
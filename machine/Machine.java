@@ -100,6 +100,49 @@ public final class Machine {
 	terminate();
     }
 
+    /**
+     * Count a block lookup in the kernel's file system buffer cache, so that
+     * it is reported with the other statistics.
+     *
+     * @param	hit	<tt>true</tt> if the block was in the cache.
+     */
+    public static void recordCacheLookup(boolean hit) {
+	if (hit)
+	    stats.numCacheHits++;
+	else
+	    stats.numCacheMisses++;
+    }
+
+    /**
+     * Count a segment resent by the kernel's network transport.
+     */
+    public static void recordRetransmit() {
+	stats.numRetransmits++;
+    }
+
+    /**
+     * Record a round trip time measured by the kernel's network transport.
+     *
+     * @param	ticks	the time from sending a segment to its
+     *			acknowledgement.
+     */
+    public static void recordRoundTrip(long ticks) {
+	stats.numRoundTrips++;
+	stats.totalRoundTripTicks += ticks;
+    }
+
+    /**
+     * Record a new congestion window set by the kernel's network transport.
+     *
+     * @param	window	the window, in segments.
+     * @param	cut	<tt>true</tt> if the window was shrunk after a loss.
+     */
+    public static void recordCongestionWindow(int window, boolean cut) {
+	stats.congestionWindow = window;
+	if (cut)
+	    stats.numWindowCuts++;
+    }
+
     /**
      * Return an array containing all command line arguments.
      *
@@ -185,8 +228,28 @@ public final class Machine {
 	if (Config.getBoolean("Machine.stubFileSystem"))
 	    stubFileSystem = new StubFileSystem(privilege, testDirectory);
 
-	if (Config.getBoolean("Machine.networkLink"))
-	    networkLink = new NetworkLink(privilege);
+	if (Config.getBoolean("Machine.disk")) {
+	    String imageName = Config.getString("Disk.image", "nachos.disk");
+	    disk = new Disk(privilege, new File(testDirectory, imageName));
+	}
+
+	if (Config.getBoolean("Machine.networkLink")) {
+	    int numLinks = Config.getInteger("NetworkLink.fabric", 0);
+	    if (numLinks > 0) {
+		Lib.assertTrue(numLinks <= Packet.linkAddressLimit);
+		System.out.print(" network(fabric of " + numLinks + ")");
+
+		NetworkFabric fabric = new NetworkFabric(privilege);
+		networkLinks = new NetworkLink[numLinks];
+		for (int i=0; i<numLinks; i++)
+		    networkLinks[i] = new NetworkLink(privilege, fabric, i);
+	    }
+	    else {
+		networkLinks = new NetworkLink[] { new NetworkLink(privilege) };
+	    }
+
+	    networkLink = networkLinks[0];
+	}
     }
 
     private static void checkUserClasses() {
@@ -337,12 +400,51 @@ public final class Machine {
      */
     public static FileSystem stubFileSystem() { return stubFileSystem; }
     
+    /**
+     * Return the disk.
+     *
+     * @return	the disk, or <tt>null</tt> if it is not present.
+     */
+    public static Disk disk() { return disk; }
+
+    /**
+     * Return the privilege and directory that host-backed file systems use,
+     * for those the kernel constructs by name.
+     */
+    static Privilege filePrivilege() { return privilege; }
+
+    static File testDirectory() { return testDirectory; }
+
     /**
      * Return the network link.
      *
      * @return	the network link,  or <tt>null</tt> if it is not present.
      */
     public static NetworkLink networkLink() { return networkLink; }
+
+    /**
+     * Return one of the network links attached to this machine. There is
+     * more than one only when they share an in-memory
+     * <tt>NetworkFabric</tt>, and link <i>i</i> has address <i>i</i>.
+     *
+     * @param	i	the index of the link.
+     * @return	the network link, or <tt>null</tt> if it is not present.
+     */
+    public static NetworkLink networkLink(int i) {
+	if (networkLinks == null || i < 0 || i >= networkLinks.length)
+	    return null;
+
+	return networkLinks[i];
+    }
+
+    /**
+     * Return the number of network links attached to this machine.
+     *
+     * @return	the number of network links.
+     */
+    public static int numNetworkLinks() {
+	return (networkLinks == null) ? 0 : networkLinks.length;
+    }
     
     /**
      * Return the autograder.
@@ -357,7 +459,9 @@ public final class Machine {
     private static Processor processor = null;
     private static SerialConsole console = null;
     private static FileSystem stubFileSystem = null;
+    private static Disk disk = null;
     private static NetworkLink networkLink = null;
+    private static NetworkLink[] networkLinks = null;
     private static AutoGrader autoGrader = null;
 
     private static String autoGraderClassName = "nachos.ag.AutoGrader";
@@ -0,0 +1,255 @@
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+/**
+ * A file system that redirects all requests to the host operating system's
+ * file system, like <tt>StubFileSystem</tt>, but maps each open file into
+ * memory. Reads, and writes within the current end of the file, copy straight
+ * to or from the mapping instead of seeking and calling into the host for
+ * every request, and the length of each open file is kept in memory. Writes
+ * that extend a file use positional <tt>FileChannel</tt> writes, and the
+ * mapping is extended the next time it is needed.
+ *
+ * <p>
+ * Every handle to the same file shares one channel, mapping and length, so
+ * a file extended through one handle is seen at its new length through the
+ * others. Opening, removing and the limit on open files work as in
+ * <tt>StubFileSystem</tt>.
+ *
+ * <p>
+ * Simulated time is charged exactly as by <tt>StubFileSystem</tt>, so only
+ * the cost on the host changes. To use it, set
+ * <tt>ThreadedKernel.fileSystem</tt> to
+ * <tt>nachos.machine.MappedFileSystem</tt>.
+ */
+public class MappedFileSystem extends StubFileSystem {
+    /**
+     * Allocate a new mapped file system over the test directory.
+     */
+    public MappedFileSystem() {
+	this(Machine.filePrivilege(), Machine.testDirectory());
+    }
+
+    /**
+     * Allocate a new mapped file system.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	directory	the root directory of the file system.
+     */
+    public MappedFileSystem(Privilege privilege, File directory) {
+	super(privilege, directory);
+    }
+
+    public OpenFile open(String name, boolean truncate) {
+	if (!checkName(name))
+	    return null;
+
+	delay();
+
+	try {
+	    return new MappedOpenFile(name, truncate);
+	}
+	catch (IOException e) {
+	    return null;
+	}
+    }
+
+    public boolean remove(String name) {
+	if (!super.remove(name))
+	    return false;
+
+	// handles still open keep the old file; the next open gets a new one
+	files.remove(name);
+	return true;
+    }
+
+    /**
+     * A host file with at least one handle open, shared by all of them.
+     */
+    private class MappedFile {
+	MappedFile(RandomAccessFile file) throws IOException {
+	    this.file = file;
+
+	    channel = file.getChannel();
+	    length = (int) channel.size();
+	}
+
+	/**
+	 * Make sure the mapping covers the whole file.
+	 */
+	boolean map() {
+	    if (mapped != null && mapped.capacity() >= length)
+		return true;
+
+	    privilege.doPrivileged(new Runnable() {
+		public void run() { getMapping(); }
+	    });
+
+	    return mapped != null;
+	}
+
+	private void getMapping() {
+	    try {
+		mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+	    }
+	    catch (IOException e) {
+		mapped = null;
+	    }
+	}
+
+	RandomAccessFile file;
+	FileChannel channel;
+	MappedByteBuffer mapped = null;
+	/** The length of the file, kept here so it need not be asked for. */
+	int length;
+	/** The number of handles open on the file. */
+	int refCount = 0;
+    }
+
+    private class MappedOpenFile extends OpenFileWithPosition {
+	MappedOpenFile(final String name, final boolean truncate)
+	    throws IOException {
+	    super(MappedFileSystem.this, name);
+
+	    if (!canOpen())
+		throw new IOException();
+
+	    shared = files.get(name);
+	    if (shared == null) {
+		final File f = new File(directory, name);
+
+		privilege.doPrivileged(new Runnable() {
+		    public void run() { getFile(f, truncate); }
+		});
+
+		if (shared == null)
+		    throw new IOException();
+
+		files.put(name, shared);
+	    }
+	    else if (truncate) {
+		privilege.doPrivileged(new Runnable() {
+		    public void run() { truncate(); }
+		});
+	    }
+
+	    shared.refCount++;
+	    open = true;
+	    openCount++;
+	}
+
+	private void getFile(File f, boolean truncate) {
+	    try {
+		if (!truncate && !f.exists())
+		    return;
+
+		RandomAccessFile file = new RandomAccessFile(f, "rw");
+		if (truncate)
+		    file.setLength(0);
+
+		shared = new MappedFile(file);
+	    }
+	    catch (IOException e) {
+		shared = null;
+	    }
+	}
+
+	private void truncate() {
+	    try {
+		shared.mapped = null;
+		shared.file.setLength(0);
+		shared.length = 0;
+	    }
+	    catch (IOException e) {
+	    }
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (!open || pos < 0 || offset < 0 || length < 0
+		|| offset+length > buf.length)
+		return -1;
+
+	    delay();
+
+	    if (pos >= shared.length)
+		return 0;
+
+	    int amount = Math.min(length, shared.length-pos);
+	    if (!shared.map())
+		return -1;
+
+	    shared.mapped.position(pos);
+	    shared.mapped.get(buf, offset, amount);
+	    return amount;
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    if (!open || pos < 0 || offset < 0 || length < 0
+		|| offset+length > buf.length)
+		return -1;
+
+	    delay();
+
+	    int end = pos+length;
+	    if (end <= shared.length && shared.map()) {
+		shared.mapped.position(pos);
+		shared.mapped.put(buf, offset, length);
+		return length;
+	    }
+
+	    try {
+		ByteBuffer source = ByteBuffer.wrap(buf, offset, length);
+		while (source.hasRemaining())
+		    shared.channel.write(source,
+					 pos+source.position()-offset);
+	    }
+	    catch (IOException e) {
+		return -1;
+	    }
+
+	    shared.length = Math.max(shared.length, end);
+	    return length;
+	}
+
+	public int length() {
+	    return open ? shared.length : -1;
+	}
+
+	public void close() {
+	    if (!open)
+		return;
+
+	    open = false;
+	    openCount--;
+
+	    if (--shared.refCount == 0) {
+		if (files.get(getName()) == shared)
+		    files.remove(getName());
+
+		shared.mapped = null;
+		try {
+		    shared.file.close();
+		}
+		catch (IOException e) {
+		}
+	    }
+	}
+
+	private MappedFile shared = null;
+	private boolean open = false;
+    }
+
+    /** The files with handles open, by name. */
+    private HashMap<String, MappedFile> files =
+	new HashMap<String, MappedFile>();
+}
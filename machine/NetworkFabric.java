@@ -0,0 +1,63 @@
+package nachos.machine;
+
+import nachos.security.*;
+
+/**
+ * An in-memory network joining several network links in the same Nachos
+ * machine, used in place of host UDP sockets when
+ * <tt>NetworkLink.fabric</tt> is set to the number of links to create. The
+ * links get addresses 0 to <i>n</i>-1, and <tt>Machine.networkLink(i)</tt>
+ * returns each of them.
+ *
+ * <p>
+ * A packet sent on one link arrives at its destination link
+ * <tt>NetworkFabric.latency</tt> ticks after the sender finishes sending it,
+ * through a simulated interrupt, so all the links share one clock and a run
+ * depends only on the random seed. Packets are lost with the probability set
+ * by <tt>NetworkLink.reliability</tt>, and each link sends at the bandwidth
+ * set by <tt>NetworkLink.bandwidth</tt>, exactly as over sockets. Packets to
+ * an address with no link are lost.
+ */
+public final class NetworkFabric {
+    /**
+     * Allocate a new, empty network fabric.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     */
+    public NetworkFabric(Privilege privilege) {
+	this.privilege = privilege;
+
+	latency = Config.getInteger("NetworkFabric.latency", Stats.NetworkTime);
+	Lib.assertTrue(latency > 0);
+    }
+
+    /**
+     * Attach a link to this fabric.
+     *
+     * @param	link	the link.
+     */
+    void attach(NetworkLink link) {
+	Lib.assertTrue(links[link.getLinkAddress()] == null);
+	links[link.getLinkAddress()] = link;
+    }
+
+    /**
+     * Carry a packet to its destination link.
+     *
+     * @param	p	the packet, which has just been sent.
+     */
+    void transmit(final Packet p) {
+	final NetworkLink destination = links[p.dstLink];
+	if (destination == null)
+	    return;
+
+	privilege.interrupt.schedule(latency, "network fabric", new Runnable() {
+		public void run() { destination.deliver(p.packetBytes); }
+	    });
+    }
+
+    private NetworkLink[] links = new NetworkLink[Packet.linkAddressLimit];
+    private int latency;
+    private Privilege privilege;
+}
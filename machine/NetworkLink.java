@@ -5,11 +5,13 @@ package nachos.machine;
 import nachos.security.*;
 
 import java.io.IOException;
-import java.net.DatagramSocket;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.security.PrivilegedAction;
+import java.util.LinkedList;
 
 /**
  * A full-duplex network link. Provides ordered, unreliable delivery of
@@ -65,7 +67,11 @@ public class NetworkLink {
      * <p>
      * <tt>nachos.conf</tt> specifies the reliability of the network. The
      * reliability, between 0 and 1, is the probability that any particular
-     * packet will not get dropped by the network.
+     * packet will not get dropped by the network. It also specifies how many
+     * packets may wait to be sent (<tt>NetworkLink.sendQueue</tt>), and
+     * optionally the link's bandwidth in bytes per 1000 ticks
+     * (<tt>NetworkLink.bandwidth</tt>), and how many received packets may
+     * wait to be read (<tt>NetworkLink.receiveRing</tt>).
      *
      * @param	privilege      	encapsulates privileged access to the Nachos
      * 				machine.
@@ -73,7 +79,7 @@ public class NetworkLink {
     public NetworkLink(Privilege privilege) {
 	System.out.print(" network");
 
-	this.privilege = privilege;
+	configure(privilege);
 
 	try {
 	    localHost = InetAddress.getLocalHost();
@@ -84,21 +90,26 @@ public class NetworkLink {
 
 	Lib.assertTrue(localHost != null);
 
-	reliability = Config.getDouble("NetworkLink.reliability");
-	Lib.assertTrue(reliability > 0 && reliability <= 1.0);
-
-	socket = null;
+	channel = null;
 
 	for (linkAddress=0;linkAddress<Packet.linkAddressLimit;linkAddress++) {
 	    try {
-		socket = new DatagramSocket(portBase + linkAddress, localHost);
+		channel = DatagramChannel.open();
+		channel.configureBlocking(false);
+		channel.socket().bind(address(linkAddress));
 		break;
 	    }
-	    catch (SocketException e) {
+	    catch (IOException e) {
+		try {
+		    channel.close();
+		}
+		catch (IOException e2) {
+		}
+		channel = null;
 	    }
 	}
 
-	if (socket == null) {
+	if (channel == null) {
 	    System.out.println("");
 	    System.out.println("Unable to acquire a link address!");
 	    Lib.assertNotReached();
@@ -106,6 +117,45 @@ public class NetworkLink {
 
 	System.out.print("(" + linkAddress + ")");
 
+	scheduleReceiveInterrupt();
+    }
+
+    /**
+     * Allocate a new network link attached to an in-memory network fabric
+     * instead of a host socket.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     * 				machine.
+     * @param	fabric		the fabric to attach to.
+     * @param	linkAddress	the address of the new link.
+     */
+    public NetworkLink(Privilege privilege, NetworkFabric fabric,
+		       int linkAddress) {
+	Lib.assertTrue(linkAddress >= 0
+		       && linkAddress < Packet.linkAddressLimit);
+
+	configure(privilege);
+
+	this.fabric = fabric;
+	this.linkAddress = (byte) linkAddress;
+	fabric.attach(this);
+    }
+
+    private void configure(Privilege privilege) {
+	this.privilege = privilege;
+
+	reliability = Config.getDouble("NetworkLink.reliability");
+	sendQueueCapacity = Config.getInteger("NetworkLink.sendQueue", 16);
+	bandwidth = Config.getInteger("NetworkLink.bandwidth", 0);
+	Lib.assertTrue(sendQueueCapacity > 0 && bandwidth >= 0);
+	Lib.assertTrue(reliability > 0 && reliability <= 1.0);
+
+	receiveRing = new ByteBuffer[Config.getInteger("NetworkLink.receiveRing",
+						       32)];
+	Lib.assertTrue(receiveRing.length > 0);
+	for (int i=0; i<receiveRing.length; i++)
+	    receiveRing[i] = ByteBuffer.allocateDirect(Packet.maxPacketLength);
+
 	receiveInterrupt = new Runnable() {
 		public void run() { receiveInterrupt(); }
 	    };
@@ -113,14 +163,16 @@ public class NetworkLink {
 	sendInterrupt = new Runnable() {
 		public void run() { sendInterrupt(); }
 	    };		
-	
-	scheduleReceiveInterrupt();
+    }
 
-	Thread receiveThread = new Thread(new Runnable() {
-		public void run() { receiveLoop(); }
-	    });
+    /**
+     * Return the host socket address of a link.
+     */
+    private InetSocketAddress address(int link) {
+	if (addresses[link] == null)
+	    addresses[link] = new InetSocketAddress(localHost, portBase + link);
 
-	receiveThread.start();
+	return addresses[link];
     }
 
     /**
@@ -141,8 +193,8 @@ public class NetworkLink {
      *
      * <p>
      * The send interrupt handler is called every time a packet sent with
-     * <tt>send()</tt> is finished being sent. This means that another
-     * packet can be sent.
+     * <tt>send()</tt> is finished being sent. This means that there is room
+     * in the send queue for another packet.
      *
      * @param	receiveInterruptHandler	the callback to call when a packet
      *					arrives.
@@ -160,92 +212,127 @@ public class NetworkLink {
 				     receiveInterrupt);
     }
 
-    private synchronized void receiveInterrupt() {
-	Lib.assertTrue(incomingPacket == null);
+    /**
+     * Move every datagram waiting on the channel into the receive ring, as
+     * far as it has room, and call the receive interrupt handler once for
+     * each packet staged. Datagrams that do not fit stay with the host until
+     * the next receive interrupt.
+     */
+    private void receiveInterrupt() {
+	int staged = 0;
 
-	if (incomingBytes != null) {
-	    if (Machine.autoGrader().canReceivePacket(privilege)) {
-		try {
-		    incomingPacket = new Packet(incomingBytes);
+	while (receiveCount < receiveRing.length) {
+	    ByteBuffer buffer =
+		receiveRing[(receiveHead + receiveCount) % receiveRing.length];
+	    buffer.clear();
 
-		    privilege.stats.numPacketsReceived++;
-		}
-		catch (MalformedPacketException e) {
-		}
+	    if (!poll(buffer))
+		break;
+
+	    buffer.flip();
+	    if (Machine.autoGrader().canReceivePacket(privilege)) {
+		receiveCount++;
+		staged++;
 	    }
+	}
 
-	    incomingBytes = null;
-	    notify();
+	scheduleReceiveInterrupt();
 
-	    if (incomingPacket == null)
-		scheduleReceiveInterrupt();
-	    else if (receiveInterruptHandler != null)
-		receiveInterruptHandler.run();
-	}
-	else {
-	    scheduleReceiveInterrupt();
-	}
+	for (int i=0; i<staged && receiveInterruptHandler != null; i++)
+	    receiveInterruptHandler.run();
     }
 
     /**
-     * Return the next packet received.
+     * Stage a packet carried by the network fabric, dropping it if the
+     * receive ring is full, and call the receive interrupt handler.
      *
-     * @return	the next packet received, or <tt>null</tt> if no packet is
-     * 		available.
+     * @param	packetBytes	the bytes of the packet.
      */
-    public Packet receive() {
-	Packet p = incomingPacket;
-	
-	if (incomingPacket != null) {
-	    incomingPacket = null;
-	    scheduleReceiveInterrupt();
-	}
-
-	return p;
+    void deliver(byte[] packetBytes) {
+	if (receiveCount == receiveRing.length
+	    || !Machine.autoGrader().canReceivePacket(privilege))
+	    return;
+
+	ByteBuffer buffer =
+	    receiveRing[(receiveHead + receiveCount) % receiveRing.length];
+	buffer.clear();
+	buffer.put(packetBytes, 0,
+		   Math.min(packetBytes.length, buffer.capacity()));
+	buffer.flip();
+	receiveCount++;
+
+	if (receiveInterruptHandler != null)
+	    receiveInterruptHandler.run();
     }
 
-    private void receiveLoop() {
-	while (true) {
-	    synchronized(this) {
-		while (incomingBytes != null) {
+    /**
+     * Receive one datagram from the channel into a buffer, without waiting.
+     *
+     * @return	<tt>true</tt> if there was a datagram.
+     */
+    private boolean poll(final ByteBuffer buffer) {
+	Boolean received = (Boolean) privilege.doPrivileged(
+	    new PrivilegedAction<Boolean>() {
+		public Boolean run() {
 		    try {
-			wait();
+			return Boolean.valueOf(channel.receive(buffer) != null);
 		    }
-		    catch (InterruptedException e) {
+		    catch (IOException e) {
+			return Boolean.FALSE;
 		    }
 		}
-	    }
-
-	    byte[] packetBytes;
+	    });
 
-	    try {
-		byte[] buffer = new byte[Packet.maxPacketLength];
+	return received.booleanValue();
+    }
 
-		DatagramPacket dp = new DatagramPacket(buffer, buffer.length);
-		
-		socket.receive(dp);
+    /**
+     * Return the next packet received. Packets are staged by the receive
+     * interrupt, which calls the receive interrupt handler once for each.
+     *
+     * @return	the next packet received, or <tt>null</tt> if no packet is
+     * 		available.
+     */
+    public Packet receive() {
+	while (receiveCount > 0) {
+	    ByteBuffer buffer = receiveRing[receiveHead];
+	    receiveHead = (receiveHead+1) % receiveRing.length;
+	    receiveCount--;
 
-		packetBytes = new byte[dp.getLength()];
+	    byte[] packetBytes = new byte[buffer.remaining()];
+	    buffer.get(packetBytes);
 
-		System.arraycopy(buffer,0, packetBytes,0, packetBytes.length);
-	    }
-	    catch (IOException e) {
-		return;
+	    try {
+		Packet p = new Packet(packetBytes);
+		privilege.stats.numPacketsReceived++;
+		return p;
 	    }
-
-	    synchronized(this) {
-		incomingBytes = packetBytes;
+	    catch (MalformedPacketException e) {
 	    }
 	}
-    }		
-    
+
+	return null;
+    }
+
+    /**
+     * Start transmitting the packet at the head of the send queue. It takes
+     * <tt>Stats.NetworkTime</tt> ticks, or if <tt>NetworkLink.bandwidth</tt>
+     * is set, as long as its bytes take at that many bytes per 1000 ticks.
+     */
     private void scheduleSendInterrupt() {
-	privilege.interrupt.schedule(Stats.NetworkTime, "network send",
-				     sendInterrupt);
+	int time = Stats.NetworkTime;
+	if (bandwidth > 0) {
+	    int length = sendQueue.getFirst().packetBytes.length;
+	    time = (int) Math.max(1, ((long) length*1000 + bandwidth-1)
+				  / bandwidth);
+	}
+
+	privilege.interrupt.schedule(time, "network send", sendInterrupt);
     }
 
     private void sendInterrupt() {
-	Lib.assertTrue(outgoingPacket != null);
+	Lib.assertTrue(!sendQueue.isEmpty());
+	outgoingPacket = sendQueue.removeFirst();
 
 	// randomly drop packets, according to its reliability
 	if (Machine.autoGrader().canSendPacket(privilege) &&
@@ -259,6 +346,9 @@ public class NetworkLink {
 	    outgoingPacket = null;
 	}
 
+	if (!sendQueue.isEmpty())
+	    scheduleSendInterrupt();
+
 	if (sendInterruptHandler != null)
 	    sendInterruptHandler.run();
     }
@@ -266,10 +356,15 @@ public class NetworkLink {
     private void sendPacket() {
 	Packet p = outgoingPacket;
 	outgoingPacket = null;
+
+	if (fabric != null) {
+	    fabric.transmit(p);
+	    privilege.stats.numPacketsSent++;
+	    return;
+	}
 	
 	try {
-	    socket.send(new DatagramPacket(p.packetBytes, p.packetBytes.length,
-					   localHost, portBase+p.dstLink));
+	    channel.send(ByteBuffer.wrap(p.packetBytes), address(p.dstLink));
 
 	    privilege.stats.numPacketsSent++;
 	}
@@ -278,16 +373,33 @@ public class NetworkLink {
     }
 
     /**
-     * Send another packet. If a packet is already being sent, the result is
-     * not defined.
+     * Queue another packet to be sent. Packets are sent one at a time, in the
+     * order they were queued, and the send interrupt handler is called once
+     * for each packet as it finishes. At most <tt>getSendQueueCapacity()</tt>
+     * packets may be queued, including the one being sent.
      *
      * @param	pkt	the packet to send.
+     * @return	<tt>true</tt> if the packet was queued, or <tt>false</tt> if
+     *		the queue is full.
      */       
-    public void send(Packet pkt) {
-	if (outgoingPacket == null)
+    public boolean send(Packet pkt) {
+	if (sendQueue.size() == sendQueueCapacity)
+	    return false;
+
+	sendQueue.add(pkt);
+	if (sendQueue.size() == 1)
 	    scheduleSendInterrupt();
-	
-	outgoingPacket = pkt;
+
+	return true;
+    }
+
+    /**
+     * Return the most packets that can be queued by <tt>send()</tt> at once.
+     *
+     * @return	the capacity of the send queue.
+     */
+    public int getSendQueueCapacity() {
+	return sendQueueCapacity;
     }
 
     private static final int hash;
@@ -316,14 +428,24 @@ public class NetworkLink {
     private Runnable sendInterruptHandler = null;
 
     private InetAddress localHost;
-    private DatagramSocket socket;
+    private DatagramChannel channel;
+    /** The fabric carrying this link's packets, or <tt>null</tt> if it uses
+     *  a host socket. */
+    private NetworkFabric fabric = null;
+    private InetSocketAddress[] addresses =
+	new InetSocketAddress[Packet.linkAddressLimit];
 
     private byte linkAddress;
     private double reliability;
 
-    private byte[] incomingBytes = null;
-    private Packet incomingPacket = null;
+    /** Pooled buffers holding received packets, oldest at
+     *  <tt>receiveHead</tt>. */
+    private ByteBuffer[] receiveRing;
+    private int receiveHead = 0, receiveCount = 0;
     private Packet outgoingPacket = null;
-
-    private boolean sendBusy = false;
+    /** Packets waiting to be sent, the first of them being sent now. */
+    private LinkedList<Packet> sendQueue = new LinkedList<Packet>();
+    private int sendQueueCapacity;
+    /** Bytes sent per 1000 ticks, or 0 to take a fixed time per packet. */
+    private int bandwidth;
 }
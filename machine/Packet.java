@@ -3,7 +3,10 @@
 package nachos.machine;
 
 /**
- * A link-layer packet.
+ * A link-layer packet. A packet is a view of one array of bytes, which holds
+ * the header followed by the contents, so it can be sent or received without
+ * copying the contents. The contents start at <tt>headerLength</tt> in
+ * <tt>packetBytes</tt>.
  *
  * @see	nachos.machine.NetworkLink
  */
@@ -22,26 +25,51 @@ public class Packet {
 	    srcLink < 0 || srcLink >= linkAddressLimit ||
 	    contents.length > maxContentsLength)
 	    throw new MalformedPacketException();
-	    
-	this.dstLink = dstLink;
-	this.srcLink = srcLink;
-	this.contents = contents;
 
 	packetBytes = new byte[headerLength + contents.length];
+	System.arraycopy(contents, 0, packetBytes, headerLength,
+			 contents.length);
+
+	setHeader(dstLink, srcLink);
+    }
+
+    /**
+     * Allocate a new packet to be sent around an array that already holds
+     * its contents, after <tt>headerLength</tt> bytes left for the header.
+     * The header is written into the array, and the contents are not copied.
+     *
+     * @param	packetBytes	the bytes making up this packet.
+     * @param	dstLink		the destination link address.
+     * @param	srcLink		the source link address.
+     */
+    public Packet(byte[] packetBytes, int dstLink, int srcLink)
+	throws MalformedPacketException {
+	// make sure the paramters are valid
+	if (dstLink < 0 || dstLink >= linkAddressLimit ||
+	    srcLink < 0 || srcLink >= linkAddressLimit ||
+	    packetBytes.length < headerLength ||
+	    packetBytes.length > maxPacketLength)
+	    throw new MalformedPacketException();
+
+	this.packetBytes = packetBytes;
+
+	setHeader(dstLink, srcLink);
+    }
+
+    private void setHeader(int dstLink, int srcLink) {
+	this.dstLink = dstLink;
+	this.srcLink = srcLink;
+	contentsLength = packetBytes.length - headerLength;
 
 	packetBytes[0] = NetworkLink.networkID;
 	packetBytes[1] = (byte) dstLink;
 	packetBytes[2] = (byte) srcLink;
-	packetBytes[3] = (byte) contents.length;
-
-	// if java had subarrays, i'd use them. but System.arraycopy is ok...
-	System.arraycopy(contents, 0, packetBytes, headerLength,
-			 contents.length);
+	packetBytes[3] = (byte) contentsLength;
     }
 
     /**
      * Allocate a new packet using the specified array of bytes received from
-     * the network.
+     * the network. The packet is a view of the array, which is not copied.
      *
      * @param	packetBytes	the bytes making up this packet.
      */
@@ -58,10 +86,19 @@ public class Packet {
 
 	dstLink = packetBytes[1];
 	srcLink = packetBytes[2];
+	contentsLength = packetBytes[3];
+    }
 
-	contents = new byte[packetBytes[3]];
+    /**
+     * Return a copy of the contents of this packet.
+     *
+     * @return	the contents, excluding the link-layer header.
+     */
+    public byte[] getContents() {
+	byte[] contents = new byte[contentsLength];
 	System.arraycopy(packetBytes, headerLength, contents, 0,
-			 contents.length);
+			 contentsLength);
+	return contents;
     }
 
     /** This packet, as an array of bytes that can be sent on a network. */
@@ -70,8 +107,9 @@ public class Packet {
     public int dstLink;
     /** The address of the source link of this packet. */
     public int srcLink;
-    /** The contents of this packet, excluding the link-layer header. */
-    public byte[] contents;
+    /** The number of bytes of contents, which follow the header in
+     *  <tt>packetBytes</tt>. */
+    public int contentsLength;
 
     /**
      * The number of bytes in a link-layer packet header. The header is
@@ -6,8 +6,8 @@ import nachos.security.*;
 
 /**
  * A serial console can be used to send and receive characters. Only one
- * character may be sent at a time, and only one character may be received at a
- * time.
+ * character, or one burst of characters, may be sent at a time, and only one
+ * character may be received at a time.
  */
 
 public interface SerialConsole {
@@ -16,12 +16,13 @@ public interface SerialConsole {
      *
      * <p>
      * The receive interrupt handler is called every time another byte arrives
-     * and can be read using <tt>readByte()</tt>.
+     * and can be read using <tt>readByte()</tt>, and once more when the input
+     * ends, after which <tt>atEndOfInput()</tt> returns <tt>true</tt>.
      *
      * <p>
      * The send interrupt handler is called every time a byte sent with
-     * <tt>writeByte()</tt> is finished being sent. This means that another
-     * byte can be sent.
+     * <tt>writeByte()</tt>, or a burst sent with <tt>writeBytes()</tt>, is
+     * finished being sent. This means that another byte can be sent.
      *
      * @param	receiveInterruptHandler	the callback to call when a byte
      *					arrives.
@@ -39,6 +40,13 @@ public interface SerialConsole {
      */
     public int	readByte();
 
+    /**
+     * Return true once the input has ended, so no more bytes will arrive.
+     *
+     * @return	<tt>true</tt> if the input has ended.
+     */
+    public boolean atEndOfInput();
+
     /**
      * Send another byte. If a byte is already being sent, the result is not
      * defined.
@@ -46,4 +54,16 @@ public interface SerialConsole {
      * @param	value	the byte to be sent (the upper 24 bits are ignored).
      */
     public void writeByte(int value);
+
+    /**
+     * Send a burst of bytes through the console's transmit buffer. Sending
+     * the burst takes as long as sending each byte in turn, but only a single
+     * send interrupt follows, once the whole burst has been sent. If a byte
+     * is already being sent, the result is not defined.
+     *
+     * @param	buf	the buffer holding the bytes to send.
+     * @param	offset	the offset in the buffer of the first byte.
+     * @param	length	the number of bytes to send.
+     */
+    public void writeBytes(byte[] buf, int offset, int length);
 }
@@ -8,6 +8,12 @@ import java.io.IOException;
 
 /**
  * A text-based console that uses System.in and System.out.
+ *
+ * <p>
+ * When there is no terminal attached, as when a script is piped in, a poll
+ * that finds no input waits on the host for the next byte, so that the end
+ * of the input can be told apart from a pause in it. Simulated time does not
+ * pass meanwhile.
  */
 public class StandardConsole implements SerialConsole {
     /**
@@ -20,6 +26,7 @@ public class StandardConsole implements SerialConsole {
 	System.out.print(" console");
 
 	this.privilege = privilege;
+	interactive = (System.console() != null);
 
 	receiveInterrupt = new Runnable() {
 		public void run() { receiveInterrupt(); }
@@ -50,10 +57,13 @@ public class StandardConsole implements SerialConsole {
      */
     protected int in() {
 	try {
-	    if (System.in.available() <= 0)
+	    if (System.in.available() <= 0 && interactive)
 		return -1;
 
-	    return System.in.read();
+	    int c = System.in.read();
+	    if (c == -1)
+		endOfInput = true;
+	    return c;
 	}
 	catch (IOException e) {
 	    return -1;
@@ -90,7 +100,12 @@ public class StandardConsole implements SerialConsole {
 	Lib.assertTrue(incomingKey == -1);
 
 	incomingKey = translateCharacter(in());
-	if (incomingKey == -1) {
+	if (endOfInput) {
+	    // stop polling, and let the handler see that no more is coming
+	    if (receiveInterruptHandler != null)
+		receiveInterruptHandler.run();
+	}
+	else if (incomingKey == -1) {
 	    scheduleReceiveInterrupt();
 	}
 	else {
@@ -101,6 +116,10 @@ public class StandardConsole implements SerialConsole {
 	}
     }
 
+    public final boolean atEndOfInput() {
+	return endOfInput;
+    }
+
     public final int readByte() {
 	int key = incomingKey;
 
@@ -112,8 +131,8 @@ public class StandardConsole implements SerialConsole {
 	return key;
     }
 
-    private void scheduleSendInterrupt() {
-	privilege.interrupt.schedule(Stats.ConsoleTime, "console write",
+    private void scheduleSendInterrupt(int length) {
+	privilege.interrupt.schedule(Stats.ConsoleTime*length, "console write",
 				     sendInterrupt);
     }
 
@@ -128,12 +147,20 @@ public class StandardConsole implements SerialConsole {
     }	
 
     private void sendInterrupt() {
-	Lib.assertTrue(outgoingKey != -1);
+	if (outgoingBurst != null) {
+	    for (int i=0; i<outgoingBurst.length; i++)
+		out(outgoingBurst[i]&0xFF);
+	    privilege.stats.numConsoleWrites += outgoingBurst.length;
+	    outgoingBurst = null;
+	}
+	else {
+	    Lib.assertTrue(outgoingKey != -1);
 
-	out(outgoingKey);
-	outgoingKey = -1;
+	    out(outgoingKey);
+	    outgoingKey = -1;
 
-	privilege.stats.numConsoleWrites++;
+	    privilege.stats.numConsoleWrites++;
+	}
 
 	if (sendInterruptHandler != null)
 	    sendInterruptHandler.run();
@@ -141,11 +168,22 @@ public class StandardConsole implements SerialConsole {
 
     public final void writeByte(int value) {
 	if (outgoingKey == -1)
-	    scheduleSendInterrupt();
+	    scheduleSendInterrupt(1);
 	
 	outgoingKey = value&0xFF;
     }
 
+    public final void writeBytes(byte[] buf, int offset, int length) {
+	Lib.assertTrue(length > 0);
+
+	// the bytes still go out one at a time; only the interrupt is shared
+	if (outgoingKey == -1 && outgoingBurst == null)
+	    scheduleSendInterrupt(length);
+
+	outgoingBurst = new byte[length];
+	System.arraycopy(buf, offset, outgoingBurst, 0, length);
+    }
+
     private Privilege privilege = null;
 
     private Runnable receiveInterrupt;
@@ -156,6 +194,10 @@ public class StandardConsole implements SerialConsole {
 
     private int incomingKey = -1;
     private int outgoingKey = -1;
+    private byte[] outgoingBurst = null;
 
     private boolean prevCarriageReturn = false;
+    /** True if System.in is a terminal, which is only polled. */
+    private boolean interactive;
+    private boolean endOfInput = false;
 }
@@ -29,6 +29,15 @@ public final class Stats {
 			   + ", TLB misses " + numTLBMisses);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+	if (numCacheHits + numCacheMisses > 0)
+	    System.out.println("Buffer cache: hits " + numCacheHits
+			       + ", misses " + numCacheMisses);
+	if (numRoundTrips + numRetransmits > 0)
+	    System.out.println("Transport: retransmits " + numRetransmits
+			       + ", window cuts " + numWindowCuts
+			       + ", RTT " + (numRoundTrips == 0 ? 0 :
+					     totalRoundTripTicks/numRoundTrips)
+			       + " ticks, window " + congestionWindow);
     }
 
     /**
@@ -61,6 +70,20 @@ public final class Stats {
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
+    /** The total number of file blocks found in the kernel buffer cache. */
+    public int numCacheHits = 0;
+    /** The total number of file blocks missing from the kernel buffer cache.*/
+    public int numCacheMisses = 0;
+    /** The total number of segments the network transport has resent. */
+    public int numRetransmits = 0;
+    /** The number of times the transport has shrunk a congestion window. */
+    public int numWindowCuts = 0;
+    /** The number of round trip times the transport has measured. */
+    public int numRoundTrips = 0;
+    /** The sum of the round trip times the transport has measured. */
+    public long totalRoundTripTicks = 0;
+    /** The congestion window, in segments, last set by the transport. */
+    public int congestionWindow = 0;
 
     /**
      * The amount to advance simulated time after each user instructions is
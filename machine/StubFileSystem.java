@@ -24,6 +24,8 @@ public class StubFileSystem implements FileSystem {
     public StubFileSystem(Privilege privilege, File directory) {
 	this.privilege = privilege;
 	this.directory = directory;
+
+	maxOpenFiles = Config.getInteger("StubFileSystem.maxOpenFiles", 16);
     }
     
     public OpenFile open(String name, boolean truncate) {
@@ -64,7 +66,10 @@ public class StubFileSystem implements FileSystem {
 	private File f;
     }
 
-    private void delay() {
+    /**
+     * Wait for the simulated device to handle one request.
+     */
+    static void delay() {
 	long time = Machine.timer().getTime();
 	int amount = 1000;
 	ThreadedKernel.alarm.waitUntil(amount);
@@ -78,7 +83,7 @@ public class StubFileSystem implements FileSystem {
 
 	    final File f = new File(directory, name);
 
-	    if (openCount == maxOpenFiles)
+	    if (!canOpen())
 		throw new IOException();
 
 	    privilege.doPrivileged(new Runnable() {
@@ -163,13 +168,23 @@ public class StubFileSystem implements FileSystem {
 	private boolean open = false;
     }
 
-    private int openCount = 0;
-    private static final int maxOpenFiles = 16;
+    /**
+     * Test whether another file may be opened without going over the limit.
+     * A file system built on this one counts its open files in
+     * <tt>openCount</tt> too.
+     */
+    boolean canOpen() {
+	return openCount < maxOpenFiles;
+    }
+
+    int openCount = 0;
+    /** The most files that can be open at once, across all processes. */
+    private int maxOpenFiles;
     
-    private Privilege privilege;
-    private File directory;
+    Privilege privilege;
+    File directory;
 
-    private static boolean checkName(String name) {
+    static boolean checkName(String name) {
 	char[] chars = name.toCharArray();
 
 	for (int i=0; i<chars.length; i++) {
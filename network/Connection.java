@@ -0,0 +1,640 @@
+package nachos.network;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * One end of a reliable, ordered byte stream between two ports, created by a
+ * <tt>Transport</tt>. A connection is an <tt>OpenFile</tt> with no position:
+ * <tt>write()</tt> queues bytes to be sent, blocking while the send buffer is
+ * full, and <tt>read()</tt> returns the bytes that have arrived in order,
+ * without waiting for more.
+ *
+ * <p>
+ * Each direction of the stream is a sequence of numbered segments, starting
+ * with a SYN and ending with a FIN. Up to <tt>Transport.window</tt> segments
+ * may be unacknowledged at once, fewer while the congestion window or the
+ * window the receiver advertises is smaller. The receiver acknowledges every
+ * segment with the number of the next segment it expects, and a bitmap of
+ * the segments after that it already holds, so the sender only retransmits
+ * what was lost.
+ */
+public class Connection extends OpenFile {
+    Connection(Transport transport, int localPort, int remoteLink,
+	       int remotePort) {
+	super(null, "connection to " + remoteLink + ":" + remotePort);
+
+	this.transport = transport;
+	this.localPort = localPort;
+	this.remoteLink = remoteLink;
+	this.remotePort = remotePort;
+
+	changed = new Condition(transport.lock);
+
+	path = transport.path(remoteLink);
+	cwnd = transport.initialWindow;
+    }
+
+    /**
+     * Return the link address of the other end of this connection.
+     *
+     * @return	the remote link address.
+     */
+    public int getRemoteLink() {
+	return remoteLink;
+    }
+
+    /**
+     * Return the port of the other end of this connection.
+     *
+     * @return	the remote port.
+     */
+    public int getRemotePort() {
+	return remotePort;
+    }
+
+    /**
+     * Return the local port of this connection.
+     *
+     * @return	the local port.
+     */
+    public int getLocalPort() {
+	return localPort;
+    }
+
+    /**
+     * Return the smoothed round trip time to the other end.
+     *
+     * @return	the round trip time in ticks, or -1 if none has been
+     *		measured.
+     */
+    public long getRoundTripTime() {
+	return path.srtt;
+    }
+
+    /**
+     * Return the congestion window of this connection.
+     *
+     * @return	the number of segments that may be unacknowledged at once.
+     */
+    public int getCongestionWindow() {
+	return Math.min(transport.window, (int) cwnd);
+    }
+
+    /**
+     * Return the number of segments this connection has resent.
+     *
+     * @return	the number of retransmissions.
+     */
+    public int getRetransmits() {
+	return retransmits;
+    }
+
+    /**
+     * Copy the bytes that have arrived in order into a buffer, without
+     * waiting for more.
+     *
+     * @return	the number of bytes read, which is 0 if none have arrived, or
+     *		-1 if the other end has closed the connection and every byte
+     *		has been read, or if the connection failed.
+     */
+    public int read(byte[] buf, int offset, int length) {
+	if (offset < 0 || length < 0 || offset+length > buf.length)
+	    return -1;
+
+	transport.lock.acquire();
+
+	int amount = 0;
+	while (amount < length && !received.isEmpty()) {
+	    Segment segment = received.getFirst();
+	    int count = Math.min(length-amount, segment.length-receivedOffset);
+	    System.arraycopy(segment.data, segment.offset+receivedOffset, buf,
+			     offset+amount, count);
+	    amount += count;
+
+	    receivedOffset += count;
+	    receivedBytes -= count;
+	    if (receivedOffset == segment.length) {
+		received.removeFirst();
+		receivedOffset = 0;
+	    }
+	}
+
+	if (amount == 0 && length > 0 && (finReceived || failed || closing))
+	    amount = -1;
+
+	// tell the sender once there is room again, rather than leave it to
+	// probe
+	int window = receiveWindow();
+	boolean update = (window > advertised
+			  && (advertised == 0
+			      || window-advertised >= transport.window/2));
+	if (update)
+	    ackPending = true;
+
+	transport.lock.release();
+
+	if (update)
+	    transport.transmit(this);
+
+	return amount;
+    }
+
+    /**
+     * Queue bytes to be sent, blocking while the send buffer is full.
+     *
+     * @return	the number of bytes queued, or -1 if the connection is closed
+     *		or failed before any were.
+     */
+    public int write(byte[] buf, int offset, int length) {
+	if (offset < 0 || length < 0 || offset+length > buf.length)
+	    return -1;
+
+	int amount = 0;
+	while (true) {
+	    transport.lock.acquire();
+
+	    while (amount < length && !closing && !failed
+		   && sendQueue.size() < transport.sendBuffer) {
+		int count = Math.min(length-amount, maxSegmentData);
+		byte[] data = new byte[count];
+		System.arraycopy(buf, offset+amount, data, 0, count);
+		sendQueue.add(new Segment(nextSeq++, 0, data));
+		amount += count;
+	    }
+
+	    boolean done = (amount == length || closing || failed);
+	    transport.lock.release();
+
+	    transport.transmit(this);
+	    if (done)
+		break;
+
+	    transport.lock.acquire();
+	    while (sendQueue.size() >= transport.sendBuffer && !failed)
+		changed.sleep();
+	    transport.lock.release();
+	}
+
+	return (amount == 0 && length > 0) ? -1 : amount;
+    }
+
+    /**
+     * Wait until every segment queued so far, including a FIN if the
+     * connection has been closed, has been acknowledged.
+     *
+     * @return	<tt>false</tt> if the connection failed first.
+     */
+    public boolean flush() {
+	transport.lock.acquire();
+
+	while (!sendQueue.isEmpty() && !failed)
+	    changed.sleep();
+	boolean flushed = !failed;
+
+	transport.lock.release();
+	return flushed;
+    }
+
+    /**
+     * Close this end of the connection. Bytes already written are still
+     * delivered, followed by a FIN, but the call does not wait for them.
+     */
+    public void close() {
+	transport.lock.acquire();
+
+	if (!closing && !failed) {
+	    closing = true;
+	    sendQueue.add(new Segment(nextSeq++, Transport.fin, new byte[0]));
+	}
+
+	transport.lock.release();
+
+	transport.transmit(this);
+    }
+
+    /**
+     * Queue the SYN that opens this direction of the stream. The transport
+     * lock must be held.
+     */
+    void open() {
+	Lib.assertTrue(nextSeq == 0);
+	sendQueue.add(new Segment(nextSeq++, Transport.syn, new byte[0]));
+    }
+
+    /**
+     * Return true once both SYNs have been received and acknowledged.
+     */
+    boolean isEstablished() {
+	return synReceived && sndUna > 0;
+    }
+
+    /**
+     * Return true once nothing more can happen on this connection, so the
+     * transport may forget it.
+     */
+    boolean isFinished() {
+	return failed || (closing && finReceived && sendQueue.isEmpty());
+    }
+
+    /**
+     * Give up on this connection, waking any thread waiting on it. The
+     * transport lock must be held.
+     */
+    void fail() {
+	failed = true;
+	sendQueue.clear();
+	changed.wakeAll();
+    }
+
+    /**
+     * Handle a packet from the other end. The transport lock must be held.
+     *
+     * @param	flags	the packet's flags.
+     * @param	seq	the packet's sequence number, as sent.
+     * @param	ack	the packet's acknowledgement number, as sent.
+     * @param	sack	the packet's selective acknowledgement bitmap.
+     * @param	window	the number of segments past <tt>ack</tt> the other
+     *			end has room for.
+     * @param	data	the array holding the packet's data, which is kept
+     *			rather than copied.
+     * @param	offset	the offset of the data in the array.
+     * @param	length	the number of bytes of data.
+     */
+    void receive(int flags, int seq, int ack, int sack, int window,
+		 byte[] data, int offset, int length) {
+	// the other end is answering, so retransmissions so far were not in
+	// vain
+	lastHeard = Machine.timer().getTime();
+	unanswered = 0;
+
+	if ((flags & Transport.ack) != 0)
+	    acknowledge(unwrap(ack, sndUna), sack, window);
+
+	if ((flags & (Transport.syn|Transport.fin)) == 0 && length == 0)
+	    return;
+
+	// every segment is acknowledged, even a duplicate, in case the last
+	// acknowledgement was lost
+	ackPending = true;
+
+	Segment segment =
+	    new Segment(unwrap(seq, rcvNext), flags, data, offset, length);
+	if (segment.seq > rcvNext
+	    && segment.seq <= rcvNext + Transport.maxWindow
+	    && !outOfOrder.containsKey(new Integer(segment.seq)))
+	    outOfOrder.put(new Integer(segment.seq), segment);
+
+	if (segment.seq == rcvNext && deliver(segment)) {
+	    Segment next;
+	    while ((next = outOfOrder.remove(new Integer(rcvNext))) != null) {
+		if (!deliver(next)) {
+		    outOfOrder.put(new Integer(next.seq), next);
+		    break;
+		}
+	    }
+	}
+    }
+
+    /**
+     * Accept the segment numbered <tt>rcvNext</tt>.
+     *
+     * @return	<tt>false</tt> if there is no room for its data.
+     */
+    private boolean deliver(Segment segment) {
+	if (segment.length > 0) {
+	    if (receivedBytes >= transport.receiveBuffer)
+		return false;
+
+	    received.add(segment);
+	    receivedBytes += segment.length;
+	}
+
+	if ((segment.flags & Transport.syn) != 0)
+	    synReceived = true;
+	if ((segment.flags & Transport.fin) != 0)
+	    finReceived = true;
+
+	rcvNext++;
+	changed.wakeAll();
+	return true;
+    }
+
+    /**
+     * Forget every segment the other end has acknowledged, note its receive
+     * window, measure the round trip time and open the congestion window. If
+     * the other end holds <tt>dupThreshold</tt> segments after the oldest
+     * one, that one was lost, so mark it to be resent at once and halve the
+     * window.
+     */
+    private void acknowledge(int ack, int sack, int window) {
+	if (ack < sndUna || ack > nextSeq)
+	    return;
+
+	if (window > 0)
+	    probeInterval = -1;
+	sndWnd = window;
+
+	// the newest segment this acknowledgement reports for the first time
+	// gives a round trip sample, if it was only sent once (Karn)
+	Segment newest = null;
+	int acked = 0, sacked = 0, outstanding = 0;
+	for (Iterator<Segment> i=sendQueue.iterator(); i.hasNext(); ) {
+	    Segment segment = i.next();
+	    int bit = segment.seq - ack - 1;
+	    boolean reported = false;
+
+	    if (segment.seq < ack) {
+		reported = !segment.sacked;
+		i.remove();
+		acked++;
+	    }
+	    else if (bit >= 0 && bit < Transport.maxWindow
+		     && (sack & (1<<bit)) != 0) {
+		reported = !segment.sacked;
+		segment.sacked = true;
+	    }
+
+	    if (segment.seq >= ack && segment.sentAt != -1) {
+		outstanding++;
+		if (segment.sacked)
+		    sacked++;
+	    }
+	    if (reported && segment.transmissions == 0
+		&& segment.sentAt != -1)
+		newest = segment;
+	}
+
+	if (newest != null)
+	    path.sample(Machine.timer().getTime() - newest.sentAt);
+
+	if (ack > sndUna) {
+	    sndUna = ack;
+	    path.progress();
+	    changed.wakeAll();
+	}
+
+	if (acked > 0 && ack >= recover) {
+	    for (int i=0; i<acked; i++)
+		cwnd += (cwnd < ssthresh) ? 1 : 1/cwnd;
+	    cwnd = Math.min(cwnd, transport.window);
+	    Machine.recordCongestionWindow(getCongestionWindow(), false);
+	}
+
+	// with few segments outstanding, fewer need to be held (early
+	// retransmit)
+	if (sacked > 0 && sacked >= Math.min(dupThreshold, outstanding-1)) {
+	    Segment first = sendQueue.getFirst();
+	    if (first.sentAt != -1 && !first.sacked
+		&& !first.fastRetransmitted) {
+		first.lost = true;
+		first.fastRetransmitted = true;
+
+		// halve the window once per window of data
+		if (ack >= recover) {
+		    recover = nextSeq;
+		    ssthresh = Math.max(cwnd/2, 2);
+		    cwnd = ssthresh;
+		    Machine.recordCongestionWindow(getCongestionWindow(),
+						   true);
+		}
+	    }
+	}
+    }
+
+    /**
+     * Return the segments that may be sent now: those in the window that
+     * have not been sent or are known to be lost, and if <tt>now</tt> is not
+     * -1, those whose retransmission timer has expired, or a probe if the
+     * other end has no room. A timeout backs off the timer and halves the
+     * window. The transport lock must be held.
+     */
+    LinkedList<Segment> sendable(long now) {
+	LinkedList<Segment> segments = new LinkedList<Segment>();
+
+	int window = sendWindow();
+	boolean timedOut = false;
+	for (Segment segment : sendQueue) {
+	    if (segment.seq >= sndUna + window)
+		break;
+
+	    boolean expired = (now != -1 && segment.sentAt != -1
+			       && !segment.sacked
+			       && now - segment.sentAt >= path.rto);
+
+	    if (expired && !timedOut) {
+		timedOut = true;
+		path.backOff();
+
+		if (sndUna >= recover) {
+		    recover = nextSeq;
+		    ssthresh = Math.max(cwnd/2, 2);
+		    cwnd = ssthresh;
+		    Machine.recordCongestionWindow(getCongestionWindow(),
+						   true);
+		}
+
+		window = sendWindow();
+		if (segment.seq >= sndUna + window)
+		    break;
+	    }
+
+	    if (segment.sentAt == -1 || segment.lost || expired) {
+		if (segment.sentAt != -1) {
+		    segment.transmissions++;
+		    if (!retransmit())
+			return new LinkedList<Segment>();
+		}
+
+		segment.lost = false;
+		segments.add(segment);
+	    }
+	}
+
+	if (now != -1 && sndWnd == 0 && !sendQueue.isEmpty()) {
+	    // a probe is answered even if the other end cannot take it, and
+	    // the answer says whether it has room yet
+	    Segment probe = sendQueue.getFirst();
+	    if (probeInterval == -1)
+		probeInterval = path.rto;
+
+	    if (now - Math.max(lastHeard, probe.sentAt) >= probeInterval) {
+		Lib.debug(dbgNet, "probing zero window of "
+			  + remoteLink + ":" + remotePort);
+		probeInterval = Math.min(probeInterval*2,
+					 transport.retransmitTimeout);
+		if (probe.sentAt != -1) {
+		    probe.transmissions++;
+		    if (!retransmit())
+			return new LinkedList<Segment>();
+		}
+
+		segments.add(probe);
+	    }
+	}
+
+	return segments;
+    }
+
+    /**
+     * Count a segment being sent again, failing the connection if too many
+     * have gone unanswered in a row.
+     *
+     * @return	<tt>false</tt> if the connection failed.
+     */
+    private boolean retransmit() {
+	if (++unanswered > transport.maxRetries) {
+	    fail();
+	    return false;
+	}
+
+	retransmits++;
+	Machine.recordRetransmit();
+	return true;
+    }
+
+    /**
+     * Return the number of segments past <tt>sndUna</tt> that may be sent:
+     * the congestion window, or the other end's receive window if smaller.
+     */
+    private int sendWindow() {
+	return Math.min(getCongestionWindow(), sndWnd);
+    }
+
+    /**
+     * Return the number of segments past <tt>rcvNext</tt> there is room
+     * for, to advertise to the other end. Every one of them is accepted
+     * whole, and so is one more whenever the buffer is not quite full, such
+     * as a probe.
+     */
+    int receiveWindow() {
+	int room = transport.receiveBuffer - receivedBytes;
+	return Math.max(0, Math.min(room / maxSegmentData,
+				    Transport.maxWindow));
+    }
+
+    /**
+     * Return true if a segment is waiting to be acknowledged. The transport
+     * lock must be held.
+     */
+    boolean hasOutstanding() {
+	return !sendQueue.isEmpty()
+	    && (sendQueue.getFirst().sentAt != -1 || sndWnd == 0);
+    }
+
+    /**
+     * Return the selective acknowledgement bitmap for the segments after
+     * <tt>rcvNext</tt>.
+     */
+    int sackBits() {
+	int sack = 0;
+	for (int i=0; i<Transport.maxWindow; i++) {
+	    if (outOfOrder.containsKey(new Integer(rcvNext+1+i)))
+		sack |= 1<<i;
+	}
+
+	return sack;
+    }
+
+    /**
+     * Return the sequence number nearest to <tt>base</tt> whose low 16 bits
+     * are <tt>wire</tt>.
+     */
+    private static int unwrap(int wire, int base) {
+	return base + (short) (wire - base);
+    }
+
+    /**
+     * A numbered segment of the stream, sent or waiting to be sent.
+     */
+    static class Segment {
+	Segment(int seq, int flags, byte[] data) {
+	    this(seq, flags, data, 0, data.length);
+	}
+
+	Segment(int seq, int flags, byte[] data, int offset, int length) {
+	    this.seq = seq;
+	    this.flags = flags;
+	    this.data = data;
+	    this.offset = offset;
+	    this.length = length;
+	}
+
+	int seq, flags;
+	/** The segment's data is <tt>length</tt> bytes of <tt>data</tt>,
+	 *  starting at <tt>offset</tt>. */
+	byte[] data;
+	int offset, length;
+	/** When the segment was last sent, or -1 if it has not been. */
+	long sentAt = -1;
+	int transmissions = 0;
+	/** True if the receiver holds this segment, but not all before it. */
+	boolean sacked = false;
+	/** True if this segment is known to be lost, and should be resent
+	 *  without waiting for its timer. */
+	boolean lost = false;
+	boolean fastRetransmitted = false;
+    }
+
+    /** The number of later segments the receiver must hold before the
+     *  oldest is taken to be lost. */
+    private static final int dupThreshold = 3;
+
+    /** The most data bytes in one segment. */
+    public static final int maxSegmentData =
+	MailMessage.maxContentsLength - Transport.headerLength;
+
+    Transport transport;
+    int localPort, remoteLink, remotePort;
+
+    /** Signalled when the window moves, data arrives or the connection
+     *  fails. */
+    Condition changed;
+
+    /** The round trip estimate for the other end's machine. */
+    Transport.Path path;
+    /** The congestion window and slow start threshold, in segments. */
+    double cwnd, ssthresh = Transport.maxWindow;
+    /** The window is not opened or halved again until this sequence number
+     *  is acknowledged, after a loss. */
+    int recover = 0;
+    int retransmits = 0;
+    /** Retransmissions since anything was last heard from the other end. */
+    int unanswered = 0;
+    /** When anything was last heard from the other end. */
+    long lastHeard = -1;
+
+    /** Unacknowledged and unsent segments, in order. */
+    LinkedList<Segment> sendQueue = new LinkedList<Segment>();
+    /** The oldest unacknowledged sequence number. */
+    int sndUna = 0;
+    /** The sequence number of the next segment queued. */
+    int nextSeq = 0;
+    /** The number of segments past <tt>sndUna</tt> the other end last said
+     *  it has room for. Until it says, only the SYN may be sent. */
+    int sndWnd = 1;
+    /** How long to wait before probing a zero window, or -1 if the window
+     *  is open. */
+    long probeInterval = -1;
+
+    /** The next sequence number expected from the other end. */
+    int rcvNext = 0;
+    /** Segments that arrived ahead of <tt>rcvNext</tt>. */
+    HashMap<Integer, Segment> outOfOrder = new HashMap<Integer, Segment>();
+    /** True if an acknowledgement should be sent. */
+    boolean ackPending = false;
+    /** The receive window last advertised to the other end. */
+    int advertised = 0;
+
+    private LinkedList<Segment> received = new LinkedList<Segment>();
+    private int receivedOffset = 0, receivedBytes = 0;
+
+    boolean synReceived = false, finReceived = false;
+    boolean closing = false, failed = false;
+
+    private static final char dbgNet = 'n';
+}
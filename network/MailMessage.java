@@ -4,7 +4,8 @@ import nachos.machine.*;
 
 /**
  * A mail message. Includes a packet header, a mail header, and the actual
- * payload.
+ * payload. A message is a view of its packet's bytes: the payload starts at
+ * <tt>contentsOffset</tt> in <tt>packet.packetBytes</tt>.
  *
  * @see	nachos.machine.Packet
  */
@@ -26,41 +27,84 @@ public class MailMessage {
 	    contents.length > maxContentsLength)
 	    throw new MalformedPacketException();
 
-	this.dstPort = (byte) dstPort;
-	this.srcPort = (byte) srcPort;
-	this.contents = contents;
+	byte[] packetBytes = new byte[contentsOffset + contents.length];
+	System.arraycopy(contents, 0, packetBytes, contentsOffset,
+			 contents.length);
+
+	setHeader(packetBytes, dstLink, dstPort, srcLink, srcPort);
+    }
+
+    /**
+     * Allocate a new mail message to be sent around an array that already
+     * holds its payload, after <tt>contentsOffset</tt> bytes left for the
+     * packet and mail headers. The headers are written into the array, and
+     * the payload is not copied.
+     *
+     * @param	packetBytes	the bytes making up the message's packet.
+     * @param	dstLink		the destination link address.
+     * @param	dstPort		the destination port.
+     * @param	srcLink		the source link address.
+     * @param	srcPort		the source port.
+     */
+    public MailMessage(byte[] packetBytes, int dstLink, int dstPort,
+		       int srcLink, int srcPort)
+	throws MalformedPacketException {
+	// make sure the paramters are valid
+	if (dstPort < 0 || dstPort >= portLimit ||
+	    srcPort < 0 || srcPort >= portLimit ||
+	    packetBytes.length < contentsOffset)
+	    throw new MalformedPacketException();
 
-	byte[] packetContents = new byte[headerLength + contents.length];
+	setHeader(packetBytes, dstLink, dstPort, srcLink, srcPort);
+    }
 
-	packetContents[0] = (byte) dstPort;
-	packetContents[1] = (byte) srcPort;
+    private void setHeader(byte[] packetBytes, int dstLink, int dstPort,
+			   int srcLink, int srcPort)
+	throws MalformedPacketException {
+	this.dstPort = dstPort;
+	this.srcPort = srcPort;
+	contentsLength = packetBytes.length - contentsOffset;
 
-	System.arraycopy(contents, 0, packetContents, headerLength,
-			 contents.length);
+	packetBytes[Packet.headerLength] = (byte) dstPort;
+	packetBytes[Packet.headerLength+1] = (byte) srcPort;
 
-	packet = new Packet(dstLink, srcLink, packetContents);
+	packet = new Packet(packetBytes, dstLink, srcLink);
     }
 	
     /**
      * Allocate a new mail message using the specified packet from the network.
+     * The message is a view of the packet's bytes, which are not copied.
      *
      * @param	packet	the packet containg the mail message.
      */
     public MailMessage(Packet packet) throws MalformedPacketException {
 	this.packet = packet;
 	
+	byte[] bytes = packet.packetBytes;
+	
 	// make sure we have a valid header
-	if (packet.contents.length < headerLength ||
-	    packet.contents[0] < 0 || packet.contents[0] >= portLimit ||
-	    packet.contents[1] < 0 || packet.contents[1] >= portLimit)
+	if (packet.contentsLength < headerLength ||
+	    bytes[Packet.headerLength] < 0 ||
+	    bytes[Packet.headerLength] >= portLimit ||
+	    bytes[Packet.headerLength+1] < 0 ||
+	    bytes[Packet.headerLength+1] >= portLimit)
 	    throw new MalformedPacketException();
 
-	dstPort = packet.contents[0];
-	srcPort = packet.contents[1];
+	dstPort = bytes[Packet.headerLength];
+	srcPort = bytes[Packet.headerLength+1];
+	contentsLength = packet.contentsLength - headerLength;
+    }
 
-	contents = new byte[packet.contents.length - headerLength];
-	System.arraycopy(packet.contents, headerLength, contents, 0,
-			 contents.length);
+    /**
+     * Return a copy of the payload of this message.
+     *
+     * @return	the payload, excluding the packet and mail headers.
+     */
+    public byte[] getContents() {
+	byte[] contents = new byte[contentsLength];
+	System.arraycopy(packet.packetBytes, contentsOffset, contents, 0,
+			 contentsLength);
+	return contents;
     }
 
     /**
@@ -69,7 +113,7 @@ public class MailMessage {
     public String toString() {
 	return "from (" + packet.srcLink + ":" + srcPort +
 	    ") to (" + packet.dstLink + ":" + dstPort +
-	    "), " + contents.length + " bytes";
+	    "), " + contentsLength + " bytes";
     }
     
     /** This message, as a packet that can be sent through a network link. */
@@ -78,8 +122,9 @@ public class MailMessage {
     public int dstPort;
     /** The port used by this message on the source machine. */
     public int srcPort;
-    /** The contents of this message, excluding the mail message header. */
-    public byte[] contents;
+    /** The number of bytes of payload, which start at
+     *  <tt>contentsOffset</tt> in <tt>packet.packetBytes</tt>. */
+    public int contentsLength;
 
     /**
      * The number of bytes in a mail header. The header is formatted as
@@ -93,6 +138,10 @@ public class MailMessage {
      */
     public static final int headerLength = 2;
 
+    /** The offset of the payload in the bytes of the message's packet. */
+    public static final int contentsOffset =
+	Packet.headerLength + headerLength;
+
     /** Maximum payload (real data) that can be included in a single mesage. */
     public static final int maxContentsLength =
 	Packet.maxContentsLength - headerLength;
@@ -24,26 +24,60 @@ public class NetKernel extends VMKernel {
 	super.initialize(args);
 
 	postOffice = new PostOffice();
+	transport = new Transport(postOffice);
+
+	// the other nodes of a network fabric get their own post offices
+	peers = new PostOffice[Machine.numNetworkLinks()];
+	peerTransports = new Transport[peers.length];
+	peers[0] = postOffice;
+	peerTransports[0] = transport;
+	for (int i=1; i<peers.length; i++) {
+	    peers[i] = new PostOffice(Machine.networkLink(i));
+	    peerTransports[i] = new Transport(peers[i]);
+	}
     }
 
     /**
      * Test the network. Create a server thread that listens for pings on port
      * 1 and sends replies. Then ping one or two hosts. Note that this test
      * assumes that the network is reliable (i.e. that the network's
-     * reliability is 1.0).
+     * reliability is 1.0). Then, if we're 0 or 1, stream data to the
+     * opposite machine through the transport, which works at any
+     * reliability.
+     *
+     * <p>
+     * If this machine has a network fabric, every node on it runs a ping
+     * server, node 0 pings each of them, and streams data to node 1.
      */
     public void selfTest() {
 	super.selfTest();
 
-	KThread serverThread = new KThread(new Runnable() {
-		public void run() { pingServer(); }
-	    });
+	for (int i=0; i<peers.length; i++) {
+	    final PostOffice server = peers[i];
+	    KThread serverThread = new KThread(new Runnable() {
+		    public void run() { pingServer(server); }
+		});
 
-	serverThread.fork();
+	    serverThread.fork();
+	}
 
 	System.out.println("Press any key to start the network test...");
 	console.readByte(true);
 
+	if (peers.length > 1) {
+	    for (int i=0; i<peers.length; i++)
+		ping(i);
+
+	    KThread receiver = new KThread(new Runnable() {
+		    public void run() { streamFrom(peerTransports[1]); }
+		});
+
+	    receiver.fork();
+	    streamTo(transport, 1);
+	    receiver.join();
+	    return;
+	}
+
 	int local = Machine.networkLink().getLinkAddress();
 
 	// ping this machine first
@@ -52,10 +86,16 @@ public class NetKernel extends VMKernel {
 	// if we're 0 or 1, ping the opposite
 	if (local <= 1)
 	    ping(1-local);
+
+	// then 0 streams to 1
+	if (local == 0)
+	    streamTo(transport, 1);
+	else if (local == 1)
+	    streamFrom(transport);
     }
 
     private void ping(int dstLink) {
-	int srcLink = Machine.networkLink().getLinkAddress();
+	int srcLink = postOffice.getLinkAddress();
 	
 	System.out.println("PING " + dstLink + " from " + srcLink);
 
@@ -64,9 +104,7 @@ public class NetKernel extends VMKernel {
 	MailMessage ping;
 
 	try {
-	    ping = new MailMessage(dstLink, 1,
-				   Machine.networkLink().getLinkAddress(), 0,
-				   new byte[0]);
+	    ping = new MailMessage(dstLink, 1, srcLink, 0, new byte[0]);
 	}
 	catch (MalformedPacketException e) {
 	    Lib.assertNotReached();
@@ -82,7 +120,54 @@ public class NetKernel extends VMKernel {
 	System.out.println("time=" + (endTime-startTime) + " ticks");	
     }
 
-    private void pingServer() {
+    private void streamTo(Transport transport, int dstLink) {
+	long startTime = Machine.timer().getTime();
+
+	Connection connection = transport.connect(dstLink, 2);
+	Lib.assertTrue(connection != null, "connect failed");
+
+	byte[] data = new byte[streamLength];
+	for (int i=0; i<data.length; i++)
+	    data[i] = (byte) i;
+
+	Lib.assertTrue(connection.write(data, 0, data.length) == data.length);
+	connection.close();
+	Lib.assertTrue(connection.flush(), "stream failed");
+
+	long endTime = Machine.timer().getTime();
+
+	System.out.println("STREAM " + data.length + " bytes to " + dstLink
+			   + ", time=" + (endTime-startTime) + " ticks");
+    }
+
+    private void streamFrom(Transport transport) {
+	Connection connection;
+	while ((connection = transport.accept(2)) == null)
+	    ThreadedKernel.alarm.waitUntil(1000);
+
+	long startTime = Machine.timer().getTime();
+
+	byte[] buf = new byte[100];
+	int total = 0, amount;
+	while ((amount = connection.read(buf, 0, buf.length)) != -1) {
+	    for (int i=0; i<amount; i++)
+		Lib.assertTrue(buf[i] == (byte) (total+i), "stream corrupted");
+	    total += amount;
+
+	    if (amount == 0)
+		ThreadedKernel.alarm.waitUntil(100);
+	}
+	connection.close();
+
+	long endTime = Machine.timer().getTime();
+
+	Lib.assertTrue(total == streamLength, "stream truncated");
+	System.out.println("STREAM " + total + " bytes from "
+			   + connection.getRemoteLink() + ", time="
+			   + (endTime-startTime) + " ticks");
+    }
+
+    private void pingServer(PostOffice postOffice) {
 	while (true) {
 	    MailMessage ping = postOffice.receive(1);
 
@@ -91,7 +176,7 @@ public class NetKernel extends VMKernel {
 	    try {
 		ack = new MailMessage(ping.packet.srcLink, ping.srcPort,
 				      ping.packet.dstLink, ping.dstPort,
-				      ping.contents);
+				      ping.getContents());
 	    }
 	    catch (MalformedPacketException e) {
 		// should never happen...
@@ -117,6 +202,15 @@ public class NetKernel extends VMKernel {
     }
 
     private PostOffice postOffice;
+    /** The post office and transport of each node on a network fabric, with
+     *  this machine's own at index 0. */
+    private PostOffice[] peers;
+    private Transport[] peerTransports;
+
+    /** The kernel's connections, shared by every process. */
+    public static Transport transport = null;
+
+    private static final int streamLength = 4000;
 
     // dummy variables to make javac smarter
     private static NetProcess dummy1 = null;
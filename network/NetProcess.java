@@ -18,7 +18,9 @@ public class NetProcess extends VMProcess {
 
     private static final int
 	syscallConnect = 11,
-	syscallAccept = 12;
+	syscallAccept = 12,
+	syscallSendmsg = 15,
+	syscallRecvmsg = 16;
     
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -28,6 +30,8 @@ public class NetProcess extends VMProcess {
      * <tr><td>syscall#</td><td>syscall prototype</td></tr>
      * <tr><td>11</td><td><tt>int  connect(int host, int port);</tt></td></tr>
      * <tr><td>12</td><td><tt>int  accept(int port);</tt></td></tr>
+     * <tr><td>15</td><td><tt>int  sendmsg(int fd, struct iovec *iov, int iovcnt);</tt></td></tr>
+     * <tr><td>16</td><td><tt>int  recvmsg(int fd, struct iovec *iov, int iovcnt);</tt></td></tr>
      * </table>
      * 
      * @param	syscall	the syscall number.
@@ -39,8 +43,145 @@ public class NetProcess extends VMProcess {
      */
     public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
 	switch (syscall) {
+	case syscallConnect:
+	    return handleConnect(a0, a1);
+	case syscallAccept:
+	    return handleAccept(a0);
+	case syscallSendmsg:
+	    return handleSendmsg(a0, a1, a2);
+	case syscallRecvmsg:
+	    return handleRecvmsg(a0, a1, a2);
 	default:
 	    return super.handleSyscall(syscall, a0, a1, a2, a3);
 	}
     }
+
+    /**
+     * Handle the connect() system call. Blocks until the remote host accepts
+     * the connection or stops answering.
+     */
+    private int handleConnect(int host, int port) {
+	Connection connection = NetKernel.transport.connect(host, port);
+	if (connection == null) {
+	    Lib.debug(dbgNet, "connect to " + host + ":" + port + " failed");
+	    return -1;
+	}
+
+	return addConnection(connection);
+    }
+
+    /**
+     * Handle the accept() system call. Never blocks.
+     */
+    private int handleAccept(int port) {
+	Connection connection = NetKernel.transport.accept(port);
+	if (connection == null)
+	    return -1;
+
+	return addConnection(connection);
+    }
+
+    /**
+     * Handle the sendmsg() system call. The buffers are gathered into one
+     * array and written with a single <tt>write()</tt>.
+     */
+    private int handleSendmsg(int fd, int iovAddr, int iovcnt) {
+	OpenFile file = files.get(fd);
+	int[] iov = readIovecs(iovAddr, iovcnt);
+	if (file == null || iov == null)
+	    return -1;
+
+	byte[] data = new byte[totalLength(iov)];
+	int offset = 0;
+	for (int i=0; i<iov.length; i+=2) {
+	    if (readVirtualMemory(iov[i], data, offset, iov[i+1]) != iov[i+1])
+		return -1;
+	    offset += iov[i+1];
+	}
+
+	return file.write(data, 0, data.length);
+    }
+
+    /**
+     * Handle the recvmsg() system call. One <tt>read()</tt> fills an array,
+     * which is then scattered into the buffers.
+     */
+    private int handleRecvmsg(int fd, int iovAddr, int iovcnt) {
+	OpenFile file = files.get(fd);
+	int[] iov = readIovecs(iovAddr, iovcnt);
+	if (file == null || iov == null)
+	    return -1;
+
+	byte[] data = new byte[totalLength(iov)];
+	int amount = file.read(data, 0, data.length);
+	if (amount <= 0)
+	    return amount;
+
+	int offset = 0;
+	for (int i=0; i<iov.length && offset<amount; i+=2) {
+	    int count = Math.min(iov[i+1], amount-offset);
+	    if (writeVirtualMemory(iov[i], data, offset, count) != count)
+		return -1;
+	    offset += count;
+	}
+
+	return amount;
+    }
+
+    /**
+     * Read an array of <tt>struct iovec</tt> from user memory.
+     *
+     * @return	the base address and length of each buffer, one after the
+     *		other, or <tt>null</tt> if the array is invalid.
+     */
+    private int[] readIovecs(int iovAddr, int iovcnt) {
+	if (iovcnt < 0 || iovcnt > maxIovecs)
+	    return null;
+
+	byte[] bytes = new byte[iovcnt*8];
+	if (readVirtualMemory(iovAddr, bytes) != bytes.length)
+	    return null;
+
+	int[] iov = new int[iovcnt*2];
+	long total = 0;
+	for (int i=0; i<iov.length; i++) {
+	    iov[i] = Lib.bytesToInt(bytes, i*4);
+	    if (i%2 == 1) {
+		if (iov[i] < 0)
+		    return null;
+		total += iov[i];
+	    }
+	}
+
+	return (total <= maxVectoredLength) ? iov : null;
+    }
+
+    private static int totalLength(int[] iov) {
+	int total = 0;
+	for (int i=1; i<iov.length; i+=2)
+	    total += iov[i];
+	return total;
+    }
+
+    /**
+     * Give a connection a file descriptor, so that the process can read,
+     * write and close it like a file.
+     */
+    private int addConnection(Connection connection) {
+	int fd = files.add(connection);
+	if (fd == -1) {
+	    Lib.debug(dbgNet, "descriptor table is full");
+	    connection.close();
+	}
+
+	return fd;
+    }
+
+    /** The most buffers one sendmsg() or recvmsg() can take
+     *  (<tt>IOV_MAX</tt>). */
+    private static final int maxIovecs = 16;
+    /** The most bytes one sendmsg() or recvmsg() can move. */
+    private static final int maxVectoredLength = 1 << 16;
+
+    private static final char dbgNet = 'n';
 }
@@ -3,6 +3,12 @@ package nachos.network;
 import nachos.machine.*;
 import nachos.threads.*;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+
 /**
  * A collection of message queues, one for each local port. A
  * <tt>PostOffice</tt> interacts directly with the network hardware. Because
@@ -12,23 +18,41 @@ import nachos.threads.*;
  * <p>
  * The post office uses a "postal worker" thread to wait for messages to arrive
  * from the network and to place them in the appropriate queues. This cannot
- * be done in the receive interrupt handler because each queue (implemented
- * with a <tt>SynchList</tt>) is protected by a lock.
+ * be done in the receive interrupt handler because the queues are protected
+ * by a lock. Each time the worker wakes up, it delivers every packet the
+ * network link holds, so a burst of packets costs one trip through the lock.
+ *
+ * <p>
+ * Messages can also be sent and received in batches, with
+ * <tt>send(List)</tt> and <tt>receive(int, int, long)</tt>.
+ *
+ * <p>
+ * A port's queue is only allocated when mail first arrives for it, and is
+ * then kept, even while empty, until <tt>closePort()</tt> is called. A thread
+ * can wait for mail on a set of ports at once with <tt>select()</tt>, so one
+ * thread can serve many ports. Waits with a timeout are ended by a single
+ * timer thread, started the first time one is needed.
  */
 public class PostOffice {
     /**
-     * Allocate a new post office, using an array of <tt>SynchList</tt>s.
-     * Register the interrupt handlers with the network hardware and start the
-     * "postal worker" thread.
+     * Allocate a new post office. Register the interrupt handlers with the
+     * network hardware and start the "postal worker" thread.
      */
     public PostOffice() {
-	messageReceived = new Semaphore(0);
-	messageSent = new Semaphore(0);
-	sendLock = new Lock();
+	this(Machine.networkLink());
+    }
 
-	queues = new SynchList[MailMessage.portLimit];
-	for (int i=0; i<queues.length; i++)
-	    queues[i] = new SynchList();
+    /**
+     * Allocate a new post office on a specific network link, for machines
+     * with more than one.
+     *
+     * @param	link	the network link to send and receive through.
+     */
+    public PostOffice(NetworkLink link) {
+	this.link = link;
+
+	messageReceived = new Semaphore(0);
+	sendSlots = new Semaphore(link.getSendQueueCapacity());
 
 	Runnable receiveHandler = new Runnable() {
 	    public void run() { receiveInterrupt(); }
@@ -36,8 +60,10 @@ public class PostOffice {
 	Runnable sendHandler = new Runnable() {
 	    public void run() { sendInterrupt(); }
 	};
-	Machine.networkLink().setInterruptHandlers(receiveHandler,
-						   sendHandler);
+	link.setInterruptHandlers(receiveHandler, sendHandler);
+
+	for (int port=0; port<MailMessage.portLimit; port++)
+	    queues.add(null);
 
 	KThread t = new KThread(new Runnable() {
 		public void run() { postalDelivery(); }
@@ -46,6 +72,15 @@ public class PostOffice {
 	t.fork();
     }
 
+    /**
+     * Return the address of the network link this post office uses.
+     *
+     * @return	the link address.
+     */
+    public int getLinkAddress() {
+	return link.getLinkAddress();
+    }
+
     /**
      * Retrieve a message on the specified port, waiting if necessary.
      *
@@ -54,18 +89,221 @@ public class PostOffice {
      * @return	the message received.
      */
     public MailMessage receive(int port) {
-	Lib.assertTrue(port >= 0 && port < queues.length);
+	return receive(port, 1, -1).getFirst();
+    }
+
+    /**
+     * Retrieve up to <tt>max</tt> messages on the specified port, waiting
+     * until at least one arrives or the timeout expires.
+     *
+     * @param	port	the port on which to wait for messages.
+     * @param	max	the most messages to return.
+     * @param	timeout	the number of ticks to wait for the first message, or
+     *			-1 to wait as long as necessary.
+     *
+     * @return	the messages received, oldest first, which is empty only if
+     *		the timeout expired.
+     */
+    public LinkedList<MailMessage> receive(int port, int max, long timeout) {
+	Lib.assertTrue(port >= 0 && port < MailMessage.portLimit);
 
 	Lib.debug(dbgNet, "waiting for mail on port " + port);
 
-	MailMessage mail = (MailMessage) queues[port].removeFirst();
+	BitSet ports = new BitSet();
+	ports.set(port);
 
-	if (Lib.test(dbgNet))
-	    System.out.println("got mail on port " + port + ": " + mail);
+	return receive(ports, max, timeout);
+    }
+
+    /**
+     * Retrieve up to <tt>max</tt> messages on whichever port of a set first
+     * has mail, as chosen by <tt>select()</tt>, waiting until one does or the
+     * timeout expires.
+     *
+     * @param	ports	the ports on which to wait for messages.
+     * @param	max	the most messages to return.
+     * @param	timeout	the number of ticks to wait for the first message, or
+     *			-1 to wait as long as necessary.
+     *
+     * @return	the messages received, all for the same port and oldest
+     *		first, which is empty only if the timeout expired.
+     */
+    public LinkedList<MailMessage> receive(BitSet ports, int max,
+					   long timeout) {
+	Lib.assertTrue(max > 0);
+
+	lock.acquire();
+
+	LinkedList<MailMessage> mail = new LinkedList<MailMessage>();
+	int port = waitForMail(ports, timeout);
+	if (port != -1) {
+	    LinkedList<MailMessage> queue = queues.get(port);
+	    while (mail.size() < max && !queue.isEmpty())
+		mail.add(queue.removeFirst());
+	}
+
+	lock.release();
+
+	if (Lib.test(dbgNet)) {
+	    for (MailMessage m : mail)
+		System.out.println("got mail on port " + port + ": " + m);
+	}
 
 	return mail;
     }
 
+    /**
+     * Wait until one of a set of ports has mail, without taking it. The
+     * ports are checked in turn, starting after the one last returned, so
+     * a busy port cannot starve the others.
+     *
+     * <p>
+     * The set is read each time the waiting thread wakes, so another thread
+     * may add ports to it while a thread waits, and then call
+     * <tt>wakeSelect()</tt> in case those ports already have mail.
+     *
+     * @param	ports	the ports on which to wait for mail.
+     * @param	timeout	the number of ticks to wait, 0 to only check, or -1 to
+     *			wait as long as necessary.
+     *
+     * @return	a port in the set with mail waiting, or -1 if the timeout
+     *		expired first.
+     */
+    public int select(BitSet ports, long timeout) {
+	lock.acquire();
+	int port = waitForMail(ports, timeout);
+	lock.release();
+
+	return port;
+    }
+
+    /**
+     * Wake every thread waiting in <tt>select()</tt> to check its ports
+     * again.
+     */
+    public void wakeSelect() {
+	lock.acquire();
+	for (Waiter waiter : waiters)
+	    waiter.wakeup.wake();
+	lock.release();
+    }
+
+    /**
+     * Discard any mail waiting on a port and free its queue, once nothing
+     * will receive on the port again. Mail that arrives for it later starts
+     * a new queue.
+     *
+     * @param	port	the port to close.
+     */
+    public void closePort(int port) {
+	Lib.assertTrue(port >= 0 && port < MailMessage.portLimit);
+
+	lock.acquire();
+	queues.set(port, null);
+	lock.release();
+    }
+
+    /**
+     * Wait until one of a set of ports has mail, or a timeout expires. The
+     * lock must be held.
+     *
+     * @return	the port with mail, or -1 if the timeout expired.
+     */
+    private int waitForMail(BitSet ports, long timeout) {
+	int port = findMail(ports);
+	if (port != -1 || timeout == 0)
+	    return port;
+
+	Waiter waiter = new Waiter(ports);
+	waiters.add(waiter);
+
+	if (timeout > 0) {
+	    waiter.deadline = Machine.timer().getTime() + timeout;
+	    addDeadline(waiter);
+	}
+
+	while ((port = findMail(ports)) == -1
+	       && (timeout < 0 || Machine.timer().getTime() < waiter.deadline))
+	    waiter.wakeup.sleep();
+
+	waiters.remove(waiter);
+	if (timeout > 0)
+	    deadlines.remove(waiter);
+	return port;
+    }
+
+    /**
+     * Return a port in a set that has mail, starting after the one last
+     * returned, or -1 if there is none. The lock must be held.
+     */
+    private int findMail(BitSet ports) {
+	int port = findMail(ports, lastSelected+1);
+	if (port == -1)
+	    port = findMail(ports, 0);
+
+	if (port != -1)
+	    lastSelected = port;
+	return port;
+    }
+
+    private int findMail(BitSet ports, int from) {
+	for (int port=ports.nextSetBit(from);
+	     port >= 0 && port < MailMessage.portLimit;
+	     port=ports.nextSetBit(port+1)) {
+	    LinkedList<MailMessage> queue = queues.get(port);
+	    if (queue != null && !queue.isEmpty())
+		return port;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Have the timer thread wake a waiter at its deadline, starting the
+     * thread if this is the first timed wait. The lock must be held.
+     */
+    private void addDeadline(Waiter waiter) {
+	deadlines.add(waiter);
+
+	if (timer == null) {
+	    timer = new KThread(new Runnable() {
+		    public void run() { timeoutLoop(); }
+		});
+	    timer.setName("post office timer").fork();
+	}
+	else if (deadlines.peek() == waiter) {
+	    timerWakeup.wake();
+	}
+    }
+
+    /**
+     * Wake each timed waiter once its deadline passes. The alarm only wakes
+     * a thread on a timer interrupt anyway, so sleeping at most one timer
+     * period at a time adds no lateness, and lets a deadline earlier than
+     * the one being slept towards be noticed.
+     */
+    private void timeoutLoop() {
+	lock.acquire();
+
+	while (true) {
+	    while (deadlines.isEmpty())
+		timerWakeup.sleep();
+
+	    long now = Machine.timer().getTime();
+	    Waiter first = deadlines.peek();
+	    if (first.deadline <= now) {
+		deadlines.remove();
+		first.wakeup.wake();
+		continue;
+	    }
+
+	    lock.release();
+	    ThreadedKernel.alarm.waitUntil(Math.min(first.deadline - now,
+						    Stats.TimerTicks));
+	    lock.acquire();
+	}
+    }
+
     /**
      * Wait for incoming messages, and then put them in the correct mailbox.
      */
@@ -73,23 +311,36 @@ public class PostOffice {
 	while (true) {
 	    messageReceived.P();
 
-	    Packet p = Machine.networkLink().receive();
+	    lock.acquire();
 
-	    MailMessage mail;
+	    // the link may hold packets whose interrupts we have not seen yet,
+	    // and those later V()s then find nothing
+	    Packet p;
+	    while ((p = link.receive()) != null) {
+		MailMessage mail;
 
-	    try {
-		mail = new MailMessage(p);
-	    }
-	    catch (MalformedPacketException e) {
-		continue;
-	    }
+		try {
+		    mail = new MailMessage(p);
+		}
+		catch (MalformedPacketException e) {
+		    continue;
+		}
 
-	    if (Lib.test(dbgNet))
-		System.out.println("delivering mail to port " + mail.dstPort
-				   + ": " + mail);
+		if (Lib.test(dbgNet))
+		    System.out.println("delivering mail to port " + mail.dstPort
+				       + ": " + mail);
 
-	    // atomically add message to the mailbox and wake a waiting thread
-	    queues[mail.dstPort].add(mail);
+		if (queues.get(mail.dstPort) == null)
+		    queues.set(mail.dstPort, new LinkedList<MailMessage>());
+		queues.get(mail.dstPort).add(mail);
+
+		for (Waiter waiter : waiters) {
+		    if (waiter.ports.get(mail.dstPort))
+			waiter.wakeup.wake();
+		}
+	    }
+
+	    lock.release();
 	}
     }
 
@@ -102,18 +353,43 @@ public class PostOffice {
     }
 
     /**
-     * Send a message to a mailbox on a remote machine.
+     * Send a message to a mailbox on a remote machine. The message is queued
+     * on the network link, so this only waits if the link's send queue is
+     * full.
      */
     public void send(MailMessage mail) {
 	if (Lib.test(dbgNet))
 	    System.out.println("sending mail: " + mail);
 
-	sendLock.acquire();
+	sendSlots.P();
 
-	Machine.networkLink().send(mail.packet);
-	messageSent.P();
+	boolean queued = link.send(mail.packet);
+	Lib.assertTrue(queued);
+    }
 
-	sendLock.release();
+    /**
+     * Send several messages, in order. Interrupts stay disabled while they
+     * are queued on the network link, so this only gives up the processor if
+     * the link's send queue fills.
+     *
+     * @param	mail	the messages to send.
+     */
+    public void send(List<MailMessage> mail) {
+	if (mail.isEmpty())
+	    return;
+
+	Lib.debug(dbgNet, "sending " + mail.size() + " messages");
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (MailMessage m : mail) {
+	    sendSlots.P();
+
+	    boolean queued = link.send(m.packet);
+	    Lib.assertTrue(queued);
+	}
+
+	Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -122,13 +398,45 @@ public class PostOffice {
      * dropped.
      */
     private void sendInterrupt() {
-	messageSent.V();
+	sendSlots.V();
+    }
+
+    /**
+     * A thread waiting for mail on a set of ports, ordered by deadline.
+     */
+    private class Waiter implements Comparable<Waiter> {
+	Waiter(BitSet ports) {
+	    this.ports = ports;
+	}
+
+	public int compareTo(Waiter waiter) {
+	    return Long.signum(deadline - waiter.deadline);
+	}
+
+	BitSet ports;
+	/** When the wait times out, if it has a timeout. */
+	long deadline = -1;
+	/** Signalled when mail arrives for one of the ports. */
+	Condition wakeup = new Condition(lock);
     }
 
-    private SynchList[] queues;
+    private NetworkLink link;
+    /** The mail waiting on each port, or <tt>null</tt> if none has arrived
+     *  since the port was last closed. */
+    private ArrayList<LinkedList<MailMessage>> queues =
+	new ArrayList<LinkedList<MailMessage>>(MailMessage.portLimit);
+    /** Protects the queues. */
+    private Lock lock = new Lock();
+    private LinkedList<Waiter> waiters = new LinkedList<Waiter>();
+    private int lastSelected = -1;
+    /** The waiters with a timeout, earliest deadline first. */
+    private PriorityQueue<Waiter> deadlines = new PriorityQueue<Waiter>();
+    /** The thread that ends timed waits, once one has been made. */
+    private KThread timer = null;
+    /** Signalled when the earliest deadline changes. */
+    private Condition timerWakeup = new Condition(lock);
     private Semaphore messageReceived;	// V'd when a message can be dequeued
-    private Semaphore messageSent;	// V'd when a message can be queued
-    private Lock sendLock;
+    private Semaphore sendSlots;	// counts free places in the send queue
 
     private static final char dbgNet = 'n';
 }
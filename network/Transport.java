@@ -0,0 +1,542 @@
+package nachos.network;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * A reliable, ordered transport over a <tt>PostOffice</tt>. A process opens a
+ * <tt>Connection</tt> to a port on another machine with <tt>connect()</tt>,
+ * and picks up connections made to one of its own ports with
+ * <tt>accept()</tt>.
+ *
+ * <p>
+ * Each connection has a sliding window of up to <tt>Transport.window</tt>
+ * segments, so a sender keeps the network link busy instead of waiting for
+ * every segment to be acknowledged. A segment that is not acknowledged
+ * within the retransmission timeout is sent again, and the connection fails
+ * if <tt>Transport.maxRetries</tt> retransmissions in a row go unanswered.
+ *
+ * <p>
+ * Every packet also advertises how many segments past the acknowledged ones
+ * the receiver has room for, out of its <tt>Transport.receiveBuffer</tt>
+ * bytes, and the sender never sends beyond that. While the receiver has no
+ * room, the sender probes it with the first waiting segment, once per
+ * retransmission timeout and backing off, and the receiver announces when
+ * room opens up again once its reader catches up.
+ *
+ * <p>
+ * The timeout adapts to each remote machine. The transport keeps a smoothed
+ * round trip time and its mean deviation for every machine it talks to,
+ * measured on segments that were only sent once, and waits their sum plus
+ * four deviations (Jacobson and Karels). The timeout starts at
+ * <tt>Transport.retransmitTimeout</tt>, and doubles after each timeout, but
+ * never beyond that, since losses on a Nachos link are random rather than
+ * a sign of a busy network.
+ *
+ * <p>
+ * A connection also limits itself to a congestion window, which grows by a
+ * segment per acknowledged segment up to a threshold, and by one segment
+ * per window after that. A segment is resent at once if the receiver holds
+ * three segments after it, or every segment after it when fewer are
+ * outstanding. That loss, or a timeout, halves the window, at most once per
+ * window of data.
+ *
+ * <p>
+ * The transport forks one thread to receive on every port it uses, which
+ * waits on all of them at once with <tt>PostOffice.select()</tt>, and one
+ * to check retransmission timers, which waits on the alarm. The transport
+ * header takes the first bytes of each message:
+ *
+ * <table>
+ * <tr><td>offset</td><td>size</td><td>value</td></tr>
+ * <tr><td>0</td><td>1</td><td>flags (SYN, ACK, FIN) in the low 3 bits, and
+ * the receive window in the high 5</td></tr>
+ * <tr><td>1</td><td>2</td><td>sequence number</td></tr>
+ * <tr><td>3</td><td>2</td><td>next sequence number expected</td></tr>
+ * <tr><td>5</td><td>2</td><td>bitmap of later segments received</td></tr>
+ * </table>
+ */
+public class Transport {
+    /**
+     * Allocate a new transport and start its receive and retransmission
+     * timer threads.
+     *
+     * @param	postOffice	the post office to send and receive through.
+     */
+    public Transport(PostOffice postOffice) {
+	this.postOffice = postOffice;
+
+	window = Config.getInteger("Transport.window", 8);
+	window = Math.max(1, Math.min(window, maxWindow));
+	retransmitTimeout =
+	    Config.getInteger("Transport.retransmitTimeout", 20000);
+	minRetransmitTimeout =
+	    Config.getInteger("Transport.minRetransmitTimeout", 1000);
+	Lib.assertTrue(0 < minRetransmitTimeout
+		       && minRetransmitTimeout <= retransmitTimeout);
+	initialWindow = Config.getInteger("Transport.initialWindow", 2);
+	initialWindow = Math.max(1, Math.min(initialWindow, window));
+	maxRetries = Config.getInteger("Transport.maxRetries", 16);
+	sendBuffer = Config.getInteger("Transport.sendBuffer", 32);
+	receiveBuffer = Config.getInteger("Transport.receiveBuffer", 1024);
+
+	for (int i=0; i<MailMessage.portLimit; i++)
+	    pending.add(new LinkedList<Connection>());
+
+	KThread t = new KThread(new Runnable() {
+		public void run() { retransmitTimer(); }
+	    });
+
+	t.setName("transport timer").fork();
+
+	KThread r = new KThread(new Runnable() {
+		public void run() { receiveLoop(); }
+	    });
+
+	r.setName("transport receiver").fork();
+    }
+
+    /**
+     * Open a connection to a port on another machine, waiting until the
+     * other end accepts it.
+     *
+     * @param	host	the link address of the other machine.
+     * @param	port	the port to connect to.
+     * @return	the new connection, or <tt>null</tt> if there was no free
+     *		local port or the other end did not answer.
+     */
+    public Connection connect(int host, int port) {
+	if (host < 0 || host >= Packet.linkAddressLimit
+	    || port < 0 || port >= MailMessage.portLimit)
+	    return null;
+
+	lock.acquire();
+
+	int localPort = allocatePort();
+	if (localPort == -1) {
+	    lock.release();
+	    return null;
+	}
+
+	Connection connection = new Connection(this, localPort, host, port);
+	connection.open();
+	addConnection(connection);
+
+	lock.release();
+
+	transmit(connection);
+
+	lock.acquire();
+
+	while (!connection.isEstablished() && !connection.failed)
+	    connection.changed.sleep();
+
+	boolean established = !connection.failed;
+	if (!established)
+	    removeConnection(connection);
+
+	lock.release();
+
+	return established ? connection : null;
+    }
+
+    /**
+     * Return a connection made to a local port, if there is one. The first
+     * call for a port starts listening on it; connections are not accepted
+     * on a port before then.
+     *
+     * @param	port	the local port.
+     * @return	the oldest connection not yet returned, or <tt>null</tt> if
+     *		there is none.
+     */
+    public Connection accept(int port) {
+	if (port < 0 || port >= MailMessage.portLimit)
+	    return null;
+
+	lock.acquire();
+
+	if (!listening.get(port)) {
+	    listening.set(port);
+	    bind(port);
+	}
+
+	Connection connection = null;
+	if (!pending.get(port).isEmpty())
+	    connection = pending.get(port).removeFirst();
+
+	lock.release();
+	return connection;
+    }
+
+    /**
+     * Return an unused local port for a new outgoing connection, starting
+     * from the highest. The lock must be held.
+     */
+    private int allocatePort() {
+	for (int port=MailMessage.portLimit-1; port>=0; port--) {
+	    if (!listening.get(port) && portUsers[port] == 0)
+		return port;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Make sure the receive thread is receiving on a local port. The lock
+     * must be held.
+     */
+    private void bind(int port) {
+	if (bound.get(port))
+	    return;
+
+	bound.set(port);
+
+	// mail may already be waiting on the port
+	postOffice.wakeSelect();
+    }
+
+    private void addConnection(Connection connection) {
+	connections.put(key(connection.localPort, connection.remoteLink,
+			    connection.remotePort), connection);
+	portUsers[connection.localPort]++;
+	bind(connection.localPort);
+    }
+
+    private void removeConnection(Connection connection) {
+	Integer key = key(connection.localPort, connection.remoteLink,
+			  connection.remotePort);
+	if (connections.get(key) == connection) {
+	    connections.remove(key);
+	    portUsers[connection.localPort]--;
+	}
+    }
+
+    /**
+     * Return the round trip estimate for a remote machine. The lock must be
+     * held.
+     */
+    Path path(int remoteLink) {
+	if (paths[remoteLink] == null)
+	    paths[remoteLink] = new Path();
+
+	return paths[remoteLink];
+    }
+
+    private static Integer key(int localPort, int remoteLink,
+			       int remotePort) {
+	return new Integer((localPort << 16) | (remoteLink << 8) | remotePort);
+    }
+
+    /**
+     * Receive messages on every bound port and hand them to their
+     * connections.
+     */
+    private void receiveLoop() {
+	while (true) {
+	    LinkedList<MailMessage> mail =
+		postOffice.receive(bound, receiveBatch, -1);
+
+	    for (MailMessage m : mail) {
+		if (m.contentsLength >= headerLength)
+		    receive(m);
+	    }
+	}
+    }
+
+    private void receive(MailMessage mail) {
+	// read the header and data in place in the packet
+	byte[] bytes = mail.packet.packetBytes;
+	int offset = MailMessage.contentsOffset;
+	int flags = bytes[offset] & flagMask;
+	int window = (bytes[offset] & 0xFF) >> flagBits;
+	int seq = readShort(bytes, offset+1);
+	int acknowledged = readShort(bytes, offset+3);
+	int sack = readShort(bytes, offset+5);
+
+	lock.acquire();
+
+	Connection connection =
+	    connections.get(key(mail.dstPort, mail.packet.srcLink,
+				mail.srcPort));
+
+	if (connection == null && flags == syn && listening.get(mail.dstPort)) {
+	    connection = new Connection(this, mail.dstPort, mail.packet.srcLink,
+					mail.srcPort);
+	    connection.open();
+	    addConnection(connection);
+	    pending.get(mail.dstPort).add(connection);
+
+	    Lib.debug(dbgNet, "accepting " + mail);
+	}
+
+	if (connection == null) {
+	    lock.release();
+
+	    // the other end lost our acknowledgement of its FIN after we
+	    // forgot the connection
+	    if ((flags & fin) != 0)
+		send(mail.dstPort, mail.packet.srcLink, mail.srcPort, ack,
+		     0, seq+1, 0, new byte[0], 0);
+	    return;
+	}
+
+	connection.receive(flags, seq, acknowledged, sack, window, bytes,
+			   offset+headerLength,
+			   mail.contentsLength-headerLength);
+	if (connection.isFinished())
+	    removeConnection(connection);
+
+	lock.release();
+
+	transmit(connection);
+    }
+
+    /**
+     * Send every segment of a connection that its window allows, and an
+     * acknowledgement if one is due and no segment carries it.
+     *
+     * @param	connection	the connection.
+     */
+    void transmit(Connection connection) {
+	lock.acquire();
+	LinkedList<MailMessage> messages =
+	    prepare(connection, connection.sendable(-1),
+		    Machine.timer().getTime());
+	lock.release();
+
+	postOffice.send(messages);
+    }
+
+    /**
+     * Build the messages carrying some segments of a connection, and start
+     * their retransmission timers. The lock must be held.
+     */
+    private LinkedList<MailMessage> prepare(Connection connection,
+					    LinkedList<Connection.Segment>
+					    segments, long now) {
+	LinkedList<MailMessage> messages = new LinkedList<MailMessage>();
+
+	if (connection.failed) {
+	    removeConnection(connection);
+	    return messages;
+	}
+
+	int ackFlag = connection.synReceived ? ack : 0;
+	for (Connection.Segment segment : segments) {
+	    MailMessage mail = message(connection, segment.flags | ackFlag,
+				       segment.seq, segment.data,
+				       segment.length);
+	    if (mail != null)
+		messages.add(mail);
+
+	    segment.sentAt = now;
+	}
+
+	if (connection.ackPending && messages.isEmpty()) {
+	    MailMessage mail = message(connection, ack, connection.nextSeq,
+				       new byte[0], 0);
+	    if (mail != null)
+		messages.add(mail);
+	}
+	connection.ackPending = false;
+
+	if (!segments.isEmpty())
+	    timerWork.wake();
+
+	return messages;
+    }
+
+    private MailMessage message(Connection connection, int flags, int seq,
+				byte[] data, int length) {
+	connection.advertised = connection.receiveWindow();
+
+	return message(connection.localPort, connection.remoteLink,
+		       connection.remotePort,
+		       flags | (connection.advertised << flagBits), seq,
+		       connection.rcvNext, connection.sackBits(), data, length);
+    }
+
+    /**
+     * Build a message, writing the transport header and copying the data
+     * straight into the bytes of its packet.
+     */
+    private MailMessage message(int localPort, int remoteLink,
+				int remotePort, int flags, int seq, int ack,
+				int sack, byte[] data, int length) {
+	int offset = MailMessage.contentsOffset;
+	byte[] bytes = new byte[offset + headerLength + length];
+	bytes[offset] = (byte) flags;
+	writeShort(bytes, offset+1, seq);
+	writeShort(bytes, offset+3, ack);
+	writeShort(bytes, offset+5, sack);
+	System.arraycopy(data, 0, bytes, offset+headerLength, length);
+
+	try {
+	    return new MailMessage(bytes, remoteLink, remotePort,
+				   postOffice.getLinkAddress(), localPort);
+	}
+	catch (MalformedPacketException e) {
+	    Lib.assertNotReached();
+	    return null;
+	}
+    }
+
+    private void send(int localPort, int remoteLink, int remotePort,
+		      int flags, int seq, int ack, int sack, byte[] data,
+		      int length) {
+	MailMessage mail = message(localPort, remoteLink, remotePort, flags,
+				   seq, ack, sack, data, length);
+	if (mail != null)
+	    postOffice.send(mail);
+    }
+
+    /**
+     * Resend segments whose retransmission timers have expired, checking
+     * four times per shortest possible timeout while any segment is
+     * unacknowledged, since a timeout shrinks as soon as new data is
+     * acknowledged.
+     */
+    private void retransmitTimer() {
+	while (true) {
+	    lock.acquire();
+
+	    while (!hasOutstanding())
+		timerWork.sleep();
+
+	    long now = Machine.timer().getTime();
+	    LinkedList<MailMessage> messages = new LinkedList<MailMessage>();
+
+	    LinkedList<Connection> all =
+		new LinkedList<Connection>(connections.values());
+	    for (Connection connection : all) {
+		LinkedList<Connection.Segment> segments =
+		    connection.sendable(now);
+		if (!segments.isEmpty())
+		    Lib.debug(dbgNet, "retransmitting " + segments.size()
+			      + " segments to " + connection.remoteLink + ":"
+			      + connection.remotePort);
+		messages.addAll(prepare(connection, segments, now));
+	    }
+
+	    lock.release();
+
+	    postOffice.send(messages);
+
+	    ThreadedKernel.alarm.waitUntil(Math.max(1, minRetransmitTimeout/4));
+	}
+    }
+
+    private boolean hasOutstanding() {
+	for (Connection connection : connections.values()) {
+	    if (connection.hasOutstanding())
+		return true;
+	}
+
+	return false;
+    }
+
+    /**
+     * The round trip time estimate for one remote machine, shared by every
+     * connection to it.
+     */
+    class Path {
+	/**
+	 * Update the estimate with a new measurement.
+	 *
+	 * @param	rtt	the ticks from sending a segment to its
+	 *			acknowledgement.
+	 */
+	void sample(long rtt) {
+	    if (srtt == -1) {
+		srtt = rtt;
+		rttvar = rtt/2;
+	    }
+	    else {
+		rttvar += (Math.abs(srtt - rtt) - rttvar) / 4;
+		srtt += (rtt - srtt) / 8;
+	    }
+
+	    // the alarm only wakes the timer thread on a timer interrupt, so
+	    // allow for that much delay
+	    long deviation = Math.max(4*rttvar, Stats.TimerTicks);
+	    baseRto = Math.max(minRetransmitTimeout,
+			       Math.min(srtt + deviation, retransmitTimeout));
+	    rto = baseRto;
+	    Machine.recordRoundTrip(rtt);
+	}
+
+	/**
+	 * Double the timeout after a segment was not acknowledged in time.
+	 */
+	void backOff() {
+	    rto = Math.min(rto*2, retransmitTimeout);
+	}
+
+	/**
+	 * Undo the backoff once new data is acknowledged, since the other
+	 * end is evidently still answering.
+	 */
+	void progress() {
+	    rto = baseRto;
+	}
+
+	/** The smoothed round trip time, or -1 before the first sample. */
+	long srtt = -1;
+	/** The smoothed mean deviation of the round trip time. */
+	long rttvar = 0;
+	/** The retransmission timeout, and what it is without backoff. */
+	long rto = retransmitTimeout, baseRto = retransmitTimeout;
+    }
+
+    private static int readShort(byte[] array, int offset) {
+	return ((array[offset] & 0xFF) << 8) | (array[offset+1] & 0xFF);
+    }
+
+    private static void writeShort(byte[] array, int offset, int value) {
+	array[offset] = (byte) (value >> 8);
+	array[offset+1] = (byte) value;
+    }
+
+    /** Packet flags. */
+    static final int syn = 0x01, ack = 0x02, fin = 0x04;
+    /** The bits of the first header byte holding the flags; the receive
+     *  window is above them. */
+    private static final int flagBits = 3, flagMask = (1<<flagBits) - 1;
+
+    /** The number of bytes in the transport header. */
+    public static final int headerLength = 7;
+    /** The largest window, limited by the selective acknowledgement
+     *  bitmap. */
+    public static final int maxWindow = 16;
+    /** The most messages the receive thread takes from a port at once. */
+    private static final int receiveBatch = 16;
+
+    int window, initialWindow, maxRetries, sendBuffer, receiveBuffer;
+    /** The first and longest, and the shortest retransmission timeouts. */
+    int retransmitTimeout, minRetransmitTimeout;
+
+    /** Protects every connection of this transport. */
+    Lock lock = new Lock();
+    private Condition timerWork = new Condition(lock);
+
+    private PostOffice postOffice;
+    private Path[] paths = new Path[Packet.linkAddressLimit];
+    private HashMap<Integer, Connection> connections =
+	new HashMap<Integer, Connection>();
+    /** Connections made to each port and not yet accepted. */
+    private ArrayList<LinkedList<Connection>> pending =
+	new ArrayList<LinkedList<Connection>>(MailMessage.portLimit);
+    /** The number of connections using each local port. */
+    private int[] portUsers = new int[MailMessage.portLimit];
+    /** Ports that accept connections. */
+    private BitSet listening = new BitSet();
+    /** Ports the receive thread receives on. */
+    private BitSet bound = new BitSet();
+
+    private static final char dbgNet = 'n';
+}
@@ -0,0 +1,54 @@
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define CHATPORT 15
+#define LINESIZE 256
+
+char line[LINESIZE];
+char buf[LINESIZE];
+
+int main(int argc, char** argv)
+{
+  int host, fd, length, amount;
+
+  if (argc!=2) {
+    printf("Usage: chat <host>\n");
+    return 1;
+  }
+
+  host = atoi(argv[1]);
+  fd = connect(host, CHATPORT);
+  if (fd==-1) {
+    printf("Unable to connect to %d\n", host);
+    return 1;
+  }
+
+  length = 0;
+  while (1) {
+    /* send each line typed, stopping at a line holding only a period */
+    if (read(stdin, &line[length], 1)==1) {
+      if (line[length]=='\n') {
+	if (length==1 && line[0]=='.')
+	  break;
+	if (write(fd, line, length+1)!=length+1)
+	  break;
+	length = 0;
+      }
+      else if (length < LINESIZE-2) {
+	length++;
+      }
+    }
+
+    /* and print whatever the server has sent */
+    amount = read(fd, buf, LINESIZE);
+    if (amount==-1)
+      break;
+    if (amount>0)
+      write(stdout, buf, amount);
+  }
+
+  close(fd);
+
+  return 0;
+}
@@ -0,0 +1,80 @@
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define CHATPORT 15
+#define MAXCLIENTS 16
+#define LINESIZE 256
+
+int clients[MAXCLIENTS];
+int lengths[MAXCLIENTS];
+char lines[MAXCLIENTS][LINESIZE];
+char c;
+
+void broadcast(char *line, int length)
+{
+  int i;
+
+  for (i=0; i<MAXCLIENTS; i++) {
+    if (clients[i]!=-1 && write(clients[i], line, length)!=length) {
+      close(clients[i]);
+      clients[i] = -1;
+    }
+  }
+}
+
+int main(int argc, char** argv)
+{
+  int i, fd;
+
+  for (i=0; i<MAXCLIENTS; i++)
+    clients[i] = -1;
+
+  printf("chat server listening on port %d, press a key to stop\n",
+	 CHATPORT);
+
+  /* stop when a key is pressed */
+  while (read(stdin, &c, 1)!=1) {
+    fd = accept(CHATPORT);
+    if (fd!=-1) {
+      for (i=0; i<MAXCLIENTS && clients[i]!=-1; i++)
+	;
+      if (i==MAXCLIENTS) {
+	close(fd);
+      }
+      else {
+	clients[i] = fd;
+	lengths[i] = 0;
+      }
+    }
+
+    /* pass on each complete line from any client to every client */
+    for (i=0; i<MAXCLIENTS; i++) {
+      if (clients[i]==-1)
+	continue;
+
+      switch (read(clients[i], &lines[i][lengths[i]], 1)) {
+      case -1:
+	close(clients[i]);
+	clients[i] = -1;
+	break;
+      case 1:
+	if (lines[i][lengths[i]]=='\n' || lengths[i]==LINESIZE-1) {
+	  broadcast(lines[i], lengths[i]+1);
+	  lengths[i] = 0;
+	}
+	else {
+	  lengths[i]++;
+	}
+	break;
+      }
+    }
+  }
+
+  for (i=0; i<MAXCLIENTS; i++) {
+    if (clients[i]!=-1)
+      close(clients[i]);
+  }
+
+  return 0;
+}
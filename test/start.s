@@ -67,3 +67,7 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(fork, syscallFork)
+	SYSCALLSTUB(sync, syscallSync)
+	SYSCALLSTUB(sendmsg, syscallSendmsg)
+	SYSCALLSTUB(recvmsg, syscallRecvmsg)
@@ -25,6 +25,10 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallFork		13
+#define syscallSync		14
+#define syscallSendmsg		15
+#define syscallRecvmsg		16
 
 protected DescriptorController descControl;
 protected static Hashtable<String, Integer> files = new Hashtable<String, Integer>();
@@ -272,6 +276,13 @@ int close(int fileDescriptor) return descControl.close(fileDescriptor);
  */
 int unlink(char *name);
 
+/**
+ * Write any file data the kernel is caching in memory back to the disk.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int sync();
+
 /**
  * Map the file referenced by fileDescriptor into memory at address. The file
  * may be as large as 0x7FFFFFFF bytes.
@@ -285,9 +296,77 @@ int unlink(char *name);
  * Returns the length of the file on success, or -1 if an error occurred.
  */
 int mmap(int fileDescriptor, char *address);
+
+/**
+ * Attempt to initiate a new connection to the specified port on the specified
+ * remote host, and return a new file descriptor referring to the connection.
+ * connect() waits until the remote host accepts the connection, and only
+ * gives up if the remote host stops answering altogether.
+ *
+ * The descriptor can be passed to read(), write() and close(). read() never
+ * waits for more data to arrive; it returns 0 if none has, and -1 once the
+ * remote host has closed the connection and all of its data has been read.
+ *
+ * Returns the new file descriptor, or -1 if an error occurred.
+ */
 int connect(int host, int port);
+
+/**
+ * Attempt to accept a single connection on the specified local port and
+ * return a file descriptor referring to the connection.
+ *
+ * The first call for a port starts listening on it; connection requests that
+ * arrive on a port before then are held until it does. If a connection is
+ * pending on the port, it is returned; otherwise accept() returns -1 at
+ * once. accept() never waits for a remote host.
+ *
+ * Returns a new file descriptor referring to the connection, or -1 if no
+ * connection was pending or an error occurred.
+ */
 int accept(int port);
 
+/**
+ * Create a copy of the current process. The child starts with a copy of the
+ * parent's memory, open files and registers, and continues from the same
+ * point as the parent.
+ *
+ * Returns the child's process ID in the parent, 0 in the child, or -1 if an
+ * error occurred.
+ */
+int fork();
+
+/**
+ * One buffer of a vectored sendmsg() or recvmsg(): iov_len bytes starting at
+ * iov_base. At most IOV_MAX buffers can be passed at once.
+ */
+struct iovec {
+  void *iov_base;
+  int iov_len;
+};
+
+#define IOV_MAX 16
+
+/**
+ * Gather the iovcnt buffers described by iov, in order, and write them to the
+ * file or connection referred to by fileDescriptor, as one write(). Many
+ * small messages sent this way cost a single system call, and over a
+ * connection they are packed into as few packets as possible.
+ *
+ * Returns the number of bytes written, or -1 if an error occurred.
+ */
+int sendmsg(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Read from the file or connection referred to by fileDescriptor, as one
+ * read() of the total length of the iovcnt buffers described by iov, and
+ * scatter the bytes read into those buffers, in order. Like read(), this
+ * never waits for data to arrive on a connection.
+ *
+ * Returns the number of bytes read, 0 if none were available, or -1 if an
+ * error occurred or the end of the stream was reached.
+ */
+int recvmsg(int fileDescriptor, struct iovec *iov, int iovcnt);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
@@ -0,0 +1,167 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * A parsed executable held by the <tt>ExecutableCache</tt>. Wraps the
+ * <tt>Coff</tt> for the file and keeps a copy of each initialized page the
+ * first time it is loaded, so later loads of the same page are copied from
+ * memory instead of read from the file.
+ *
+ * <p>
+ * The <tt>Coff</tt> reads through a <tt>Handle</tt>, so the file under it can
+ * be closed while no process is running the executable, and reopened when
+ * one starts again, without parsing the headers again.
+ */
+public class Executable {
+    Executable(ExecutableCache cache, String name, int length, int stamp,
+	       Handle file, Coff coff) {
+	this.cache = cache;
+	this.name = name;
+	this.length = length;
+	this.file = file;
+	this.coff = coff;
+
+	key = name + ":" + length + ":" + stamp;
+	images = new byte[coff.getNumSections()][][];
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    if (section.isInitialzed())
+		images[s] = new byte[section.getLength()][];
+	}
+    }
+
+    /**
+     * Return the name of the executable file.
+     *
+     * @return	the name of the file.
+     */
+    public String getName() {
+	return name;
+    }
+
+    /**
+     * Return the length of the executable file.
+     *
+     * @return	the length of the file, in bytes.
+     */
+    public int getLength() {
+	return length;
+    }
+
+    /**
+     * Return a string identifying these contents of the file. The key changes
+     * whenever the file is modified through the kernel.
+     *
+     * @return	the key.
+     */
+    public String getKey() {
+	return key;
+    }
+
+    /**
+     * Return the parsed COFF file.
+     *
+     * @return	the <tt>Coff</tt> for the executable.
+     */
+    public Coff getCoff() {
+	return coff;
+    }
+
+    /**
+     * Load a page of a section into physical memory, as
+     * <tt>CoffSection.loadPage()</tt> does.
+     *
+     * @param	s	the section number.
+     * @param	spn	the page number within the section.
+     * @param	ppn	the physical page to fill.
+     */
+    public void loadPage(int s, int spn, int ppn) {
+	byte[] memory = Machine.processor().getMemory();
+
+	if (images[s] != null && images[s][spn] != null) {
+	    System.arraycopy(images[s][spn], 0, memory, ppn*pageSize, pageSize);
+	    return;
+	}
+
+	coff.getSection(s).loadPage(spn, ppn);
+
+	if (images[s] != null) {
+	    byte[] image = new byte[pageSize];
+	    System.arraycopy(memory, ppn*pageSize, image, 0, pageSize);
+	    cache.addImage(this, s, spn, image);
+	}
+    }
+
+    /**
+     * A file that forwards to another one, which can be closed and replaced
+     * by a new handle to the same file.
+     */
+    static class Handle extends OpenFile {
+	Handle(OpenFile file) {
+	    super(file.getFileSystem(), file.getName());
+	    this.file = file;
+	}
+
+	/**
+	 * Return true if there is a file under this handle.
+	 */
+	boolean isAttached() {
+	    return file != null;
+	}
+
+	/**
+	 * Put a newly opened file under this handle.
+	 */
+	void attach(OpenFile file) {
+	    Lib.assertTrue(this.file == null);
+	    this.file = file;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    Lib.assertTrue(file != null);
+	    return file.read(pos, buf, offset, length);
+	}
+
+	public int length() {
+	    return (file != null) ? file.length() : -1;
+	}
+
+	/**
+	 * Close the file under this handle, if there is one.
+	 */
+	public void close() {
+	    if (file != null) {
+		file.close();
+		file = null;
+	    }
+	}
+
+	private OpenFile file;
+    }
+
+    ExecutableCache cache;
+    String name;
+    int length;
+    String key;
+    /** The file the <tt>Coff</tt> reads, open only while in use. */
+    Handle file;
+    Coff coff;
+
+    /** The number of processes using this executable. */
+    int refCount = 0;
+    /** Set once the file has changed, so it is not reopened. */
+    boolean stale = false;
+    /** Set while the file is being reopened without the cache lock. */
+    boolean reopening = false;
+
+    /**
+     * A copy of each initialized page that has been loaded, by section. The
+     * cache may drop them to stay within its budget.
+     */
+    byte[][][] images;
+    /** The bytes held in <tt>images</tt>, counted against the budget. */
+    int imageBytes = 0;
+
+    private static final int pageSize = Processor.pageSize;
+}
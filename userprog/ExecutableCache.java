@@ -0,0 +1,309 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.io.EOFException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A kernel-wide cache of parsed executables, so that running the same program
+ * again does not have to open the file and parse its headers. Each entry is
+ * keyed on the file name, and carries the file's length and a modification
+ * stamp that the kernel bumps whenever the file is created, written or
+ * removed through a syscall.
+ *
+ * <p>
+ * The file of an executable that no process is running is closed, so idle
+ * entries do not take up open files, and is reopened when the executable is
+ * run again. The parsed headers and page images stay cached until the total
+ * length of the cached files and of the page images kept with them exceeds
+ * a byte budget, when the least recently used idle entries are dropped. If
+ * that is not enough, the page images of executables still in use are
+ * dropped as well.
+ */
+public class ExecutableCache {
+    /**
+     * Allocate a new executable cache.
+     *
+     * @param	maxBytes	the most bytes of idle executables to keep.
+     */
+    public ExecutableCache(int maxBytes) {
+	this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Return the executable with the specified name, parsing it if it is not
+     * cached. The caller must pass it to <tt>close()</tt> when done.
+     *
+     * @param	name	the name of the file.
+     * @return	the executable, or <tt>null</tt> if the file could not be
+     *		opened or is not a valid COFF file.
+     */
+    public Executable open(String name) {
+	lock.acquire();
+
+	Executable executable;
+	while ((executable = entries.get(name)) != null) {
+	    if (executable.reopening) {
+		reopened.sleep();
+		continue;
+	    }
+
+	    if (executable.file.isAttached()) {
+		Lib.debug(dbgProcess, "\texecutable cache hit for " + name);
+		executable.refCount++;
+		lock.release();
+		return executable;
+	    }
+
+	    if (reopen(executable)) {
+		lock.release();
+		return executable;
+	    }
+
+	    if (entries.get(name) != executable) {
+		// the entry was dropped or replaced while the file was opened
+		continue;
+	    }
+
+	    lock.release();
+	    return null;
+	}
+
+	if (!stamps.containsKey(name))
+	    stamps.put(name, new Integer(0));
+	int stamp = stamps.get(name).intValue();
+
+	lock.release();
+
+	// parse without the lock, since reading the headers blocks
+	OpenFile file = ThreadedKernel.fileSystem.open(name, false);
+	if (file == null) {
+	    Lib.debug(dbgProcess, "\topen failed");
+	    return null;
+	}
+
+	Executable.Handle handle = new Executable.Handle(file);
+	Coff coff;
+	try {
+	    coff = new Coff(handle);
+	}
+	catch (EOFException e) {
+	    handle.close();
+	    Lib.debug(dbgProcess, "\tcoff load failed");
+	    return null;
+	}
+
+	lock.acquire();
+
+	if (stamps.get(name).intValue() != stamp) {
+	    // modified while we were parsing, so we may have mixed old and new
+	    // contents
+	    coff.close();
+	    lock.release();
+	    return open(name);
+	}
+
+	executable = entries.get(name);
+	if (executable != null) {
+	    // someone else parsed it first
+	    coff.close();
+	}
+	else {
+	    executable = new Executable(this, name, file.length(), stamp,
+					handle, coff);
+	    entries.put(name, executable);
+	    cachedBytes += executable.length;
+	}
+
+	executable.refCount++;
+	trim();
+
+	lock.release();
+	return executable;
+    }
+
+    /**
+     * Add a user to an executable that is already open, for a forked
+     * process. The caller must pass it to <tt>close()</tt> when done.
+     *
+     * @param	executable	the executable to share.
+     */
+    public void share(Executable executable) {
+	lock.acquire();
+
+	Lib.assertTrue(executable.refCount > 0);
+	executable.refCount++;
+
+	lock.release();
+    }
+
+    /**
+     * Release an executable returned by <tt>open()</tt> or passed to
+     * <tt>share()</tt>.
+     *
+     * @param	executable	the executable to release.
+     */
+    public void close(Executable executable) {
+	lock.acquire();
+
+	Lib.assertTrue(executable.refCount > 0);
+	if (--executable.refCount == 0) {
+	    if (executable.stale) {
+		executable.coff.close();
+	    }
+	    else {
+		// keep the headers, but give back the open file
+		executable.file.close();
+		trim();
+	    }
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Open the file of a cached executable again, for a process that is
+     * starting to run it, without holding the lock while the file system
+     * works. The lock must be held.
+     *
+     * @return	<tt>true</tt> if the file was reopened and the executable now
+     *		has a user.
+     */
+    private boolean reopen(Executable executable) {
+	Lib.debug(dbgProcess, "\treopening cached executable "
+		  + executable.name);
+
+	executable.reopening = true;
+	lock.release();
+
+	OpenFile file = ThreadedKernel.fileSystem.open(executable.name, false);
+
+	lock.acquire();
+	executable.reopening = false;
+	reopened.wakeAll();
+
+	if (file == null)
+	    return false;
+
+	if (entries.get(executable.name) != executable
+	    || executable.file.isAttached()) {
+	    file.close();
+	    return false;
+	}
+
+	if (file.length() != executable.length) {
+	    // changed behind the kernel's back, so parse it again
+	    file.close();
+	    entries.remove(executable.name);
+	    cachedBytes -= executable.length + executable.imageBytes;
+	    executable.stale = true;
+	    executable.coff.close();
+	    return false;
+	}
+
+	executable.file.attach(file);
+	executable.refCount++;
+	return true;
+    }
+
+    /**
+     * Note that a file has been modified, so that a cached executable with
+     * that name is not used again.
+     *
+     * @param	name	the name of the modified file.
+     */
+    public void invalidate(String name) {
+	lock.acquire();
+
+	Integer stamp = stamps.get(name);
+	if (stamp != null) {
+	    stamps.put(name, new Integer(stamp.intValue() + 1));
+
+	    Executable executable = entries.remove(name);
+	    if (executable != null) {
+		Lib.debug(dbgProcess, "\tdropping cached executable " + name);
+		cachedBytes -= executable.length + executable.imageBytes;
+		executable.stale = true;
+		if (executable.refCount == 0)
+		    executable.coff.close();
+	    }
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Keep a copy of a loaded page with its executable, if the executable is
+     * still cached and nobody has kept one already.
+     *
+     * @param	executable	the executable the page belongs to.
+     * @param	s		the section number.
+     * @param	spn		the page number within the section.
+     * @param	image		the contents of the page.
+     */
+    void addImage(Executable executable, int s, int spn, byte[] image) {
+	lock.acquire();
+
+	if (!executable.stale && executable.images[s][spn] == null) {
+	    executable.images[s][spn] = image;
+	    executable.imageBytes += image.length;
+	    cachedBytes += image.length;
+	    trim();
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Close least recently used executables that no process is running
+     * until the cache is back within its budget, and then drop the page
+     * images of the rest, least recently used first, if it is still over.
+     */
+    private void trim() {
+	Iterator<Executable> i = entries.values().iterator();
+	while (cachedBytes > maxBytes && i.hasNext()) {
+	    Executable executable = i.next();
+	    if (executable.refCount == 0) {
+		Lib.debug(dbgProcess, "\tevicting cached executable "
+			  + executable.name);
+		i.remove();
+		cachedBytes -= executable.length + executable.imageBytes;
+		executable.coff.close();
+	    }
+	}
+
+	i = entries.values().iterator();
+	while (cachedBytes > maxBytes && i.hasNext()) {
+	    Executable executable = i.next();
+	    if (executable.imageBytes > 0) {
+		Lib.debug(dbgProcess, "\tdropping page images of "
+			  + executable.name);
+		for (int s=0; s<executable.images.length; s++) {
+		    if (executable.images[s] != null)
+			Arrays.fill(executable.images[s], null);
+		}
+		cachedBytes -= executable.imageBytes;
+		executable.imageBytes = 0;
+	    }
+	}
+    }
+
+    private int maxBytes;
+    private int cachedBytes = 0;
+
+    /** The cached executables, least recently used first. */
+    private LinkedHashMap<String, Executable> entries =
+	new LinkedHashMap<String, Executable>(16, 0.75f, true);
+    /** The modification stamp of every file that has been executed. */
+    private HashMap<String, Integer> stamps = new HashMap<String, Integer>();
+    private Lock lock = new Lock();
+    /** Signalled when an executable's file has been reopened, or not. */
+    private Condition reopened = new Condition(lock);
+
+    private static final char dbgProcess = 'a';
+}
@@ -0,0 +1,158 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * A process's file descriptor table. The table grows as descriptors are
+ * allocated, up to a configurable limit, and a bitmap of used slots finds the
+ * lowest free descriptor without scanning the table.
+ *
+ * <p>
+ * Descriptors refer to shared, reference-counted open files, so a forked
+ * process can share its parent's files, including their positions. The
+ * underlying <tt>OpenFile</tt> is closed when the last descriptor referring to
+ * it is closed.
+ */
+public class FileTable {
+    /**
+     * Allocate a new, empty descriptor table.
+     */
+    public FileTable() {
+    }
+
+    /**
+     * Give an open file the lowest free descriptor.
+     *
+     * @param	file	the file to add.
+     * @return	the new descriptor, or -1 if the table is full. The caller
+     *		still owns the file in that case.
+     */
+    public int add(OpenFile file) {
+	return add(new Entry(file));
+    }
+
+    private int add(Entry entry) {
+	int fd = used.nextClearBit(0);
+	if (fd >= maxDescriptors)
+	    return -1;
+
+	if (fd >= entries.length)
+	    entries = Arrays.copyOf(entries,
+				    Math.min(entries.length*2, maxDescriptors));
+
+	entries[fd] = entry;
+	used.set(fd);
+	countName(entry.file.getName(), 1);
+	return fd;
+    }
+
+    /**
+     * Return the file referred to by a descriptor.
+     *
+     * @param	fd	the descriptor.
+     * @return	the open file, or <tt>null</tt> if the descriptor is not in
+     *		use.
+     */
+    public OpenFile get(int fd) {
+	if (fd < 0 || fd >= entries.length || entries[fd] == null)
+	    return null;
+
+	return entries[fd].file;
+    }
+
+    /**
+     * Close a descriptor. The file itself is closed if no other descriptor
+     * refers to it.
+     *
+     * @param	fd	the descriptor to close.
+     * @return	<tt>false</tt> if the descriptor was not in use.
+     */
+    public boolean close(int fd) {
+	if (get(fd) == null)
+	    return false;
+
+	Entry entry = entries[fd];
+	entries[fd] = null;
+	used.clear(fd);
+	countName(entry.file.getName(), -1);
+
+	if (--entry.refCount == 0)
+	    entry.file.close();
+
+	return true;
+    }
+
+    /**
+     * Close every descriptor in the table.
+     */
+    public void closeAll() {
+	for (int fd=used.nextSetBit(0); fd >= 0; fd=used.nextSetBit(fd+1))
+	    close(fd);
+    }
+
+    /**
+     * Test whether any descriptor refers to a file with the specified name.
+     *
+     * @param	name	the file name.
+     * @return	<tt>true</tt> if the file is open in this table.
+     */
+    public boolean isOpen(String name) {
+	return openNames.containsKey(name);
+    }
+
+    /**
+     * Make this table refer to the same files as another, under the same
+     * descriptors. Descriptors already in this table are closed first.
+     *
+     * @param	other	the table to copy.
+     */
+    public void copy(FileTable other) {
+	closeAll();
+
+	entries = new Entry[other.entries.length];
+	for (int fd=other.used.nextSetBit(0); fd >= 0;
+	     fd=other.used.nextSetBit(fd+1)) {
+	    Entry entry = other.entries[fd];
+	    entry.refCount++;
+	    entries[fd] = entry;
+	    used.set(fd);
+	    countName(entry.file.getName(), 1);
+	}
+    }
+
+    private void countName(String name, int delta) {
+	Integer count = openNames.get(name);
+	int newCount = (count == null ? 0 : count.intValue()) + delta;
+	if (newCount == 0)
+	    openNames.remove(name);
+	else
+	    openNames.put(name, new Integer(newCount));
+    }
+
+    /**
+     * An open file and the number of descriptors, in any table, that refer to
+     * it. Nothing here can block or switch threads, so the count needs no
+     * lock.
+     */
+    private static class Entry {
+	Entry(OpenFile file) {
+	    this.file = file;
+	}
+
+	OpenFile file;
+	int refCount = 1;
+    }
+
+    private Entry[] entries = new Entry[initialDescriptors];
+    private BitSet used = new BitSet();
+    /** The number of descriptors referring to each open file name. */
+    private HashMap<String, Integer> openNames = new HashMap<String, Integer>();
+
+    private static final int initialDescriptors = 16;
+    private static final int maxDescriptors =
+	Config.getInteger("UserProcess.maxFileDescriptors", 1024);
+}
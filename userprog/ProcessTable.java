@@ -0,0 +1,149 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The kernel-wide table of user processes, indexed by process ID. Process IDs
+ * are handed out lowest first and reused once a process has exited and been
+ * reaped, either by its parent joining it or by its parent exiting.
+ *
+ * <p>
+ * The exit status of a process that has exited but not yet been reaped is
+ * kept in a plain <tt>int</tt> array beside the table.
+ */
+public class ProcessTable {
+    /**
+     * Allocate a new, empty process table.
+     *
+     * @param	maxProcesses	the most process IDs that can be in use.
+     */
+    public ProcessTable(int maxProcesses) {
+	this.maxProcesses = maxProcesses;
+    }
+
+    /**
+     * Give a new process the lowest free process ID.
+     *
+     * @param	process	the new process.
+     * @return	its process ID, or -1 if the table is full.
+     */
+    public int allocate(UserProcess process) {
+	lock.acquire();
+
+	int pid = used.nextClearBit(0);
+	if (pid >= maxProcesses) {
+	    lock.release();
+	    return -1;
+	}
+
+	if (pid >= processes.length) {
+	    int length = Math.min(processes.length*2, maxProcesses);
+	    processes = Arrays.copyOf(processes, length);
+	    exitStatus = Arrays.copyOf(exitStatus, length);
+	}
+
+	processes[pid] = process;
+	used.set(pid);
+
+	lock.release();
+	return pid;
+    }
+
+    /**
+     * Return the process with the specified ID.
+     *
+     * @param	pid	the process ID.
+     * @return	the process, or <tt>null</tt> if the ID is not in use.
+     */
+    public UserProcess get(int pid) {
+	if (pid < 0 || pid >= processes.length)
+	    return null;
+
+	return processes[pid];
+    }
+
+    /**
+     * Record that a process has exited. Its ID is released at once if it has
+     * no parent to join it.
+     *
+     * @param	process	the process.
+     * @param	status	the exit status.
+     */
+    public void exit(UserProcess process, int status) {
+	lock.acquire();
+
+	int pid = process.processID;
+	exitStatus[pid] = status;
+	exited.set(pid);
+	if (process.parent == null)
+	    release(pid);
+
+	lock.release();
+    }
+
+    /**
+     * Reap an exited process, releasing its ID.
+     *
+     * @param	pid	the process ID.
+     * @return	the process's exit status.
+     */
+    public int reap(int pid) {
+	lock.acquire();
+
+	Lib.assertTrue(exited.get(pid));
+	int status = exitStatus[pid];
+	release(pid);
+
+	lock.release();
+	return status;
+    }
+
+    /**
+     * Detach a process from its parent, reaping it if it has already exited.
+     * Called when the parent exits.
+     *
+     * @param	child	the child process.
+     */
+    public void orphan(UserProcess child) {
+	lock.acquire();
+
+	child.parent = null;
+	if (exited.get(child.processID))
+	    release(child.processID);
+
+	lock.release();
+    }
+
+    /**
+     * Release the ID of a process that never ran.
+     *
+     * @param	pid	the process ID.
+     */
+    public void free(int pid) {
+	lock.acquire();
+	release(pid);
+	lock.release();
+    }
+
+    private void release(int pid) {
+	processes[pid] = null;
+	used.clear(pid);
+	exited.clear(pid);
+    }
+
+    private int maxProcesses;
+
+    /** The process holding each ID. */
+    private UserProcess[] processes = new UserProcess[initialProcesses];
+    /** The exit status of each process that has exited. */
+    private int[] exitStatus = new int[initialProcesses];
+    private BitSet used = new BitSet();
+    private BitSet exited = new BitSet();
+    private Lock lock = new Lock();
+
+    private static final int initialProcesses = 16;
+}
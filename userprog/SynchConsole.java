@@ -7,6 +7,19 @@ import nachos.userprog.*;
 /**
  * Provides a simple, synchronized interface to the machine's console. The
  * interface can also be accessed through <tt>OpenFile</tt> objects.
+ *
+ * <p>
+ * Output is collected in a buffer and handed to the console as one burst
+ * when a write contains a newline, when the buffer fills, when the console is
+ * about to be read, or when <tt>flush()</tt> is called.
+ *
+ * <p>
+ * Input is drained from the console by the receive interrupt into a ring
+ * buffer, so bytes arrive whether or not anyone is reading. In canonical mode
+ * (<tt>SynchConsole.canonical</tt>), reads through a console file wait until
+ * a whole line has arrived and return at most one line. Once the input ends,
+ * a last line without a newline is returned as is, and reads after that
+ * return 0.
  */
 public class SynchConsole {
     /**
@@ -16,6 +29,11 @@ public class SynchConsole {
      */
     public SynchConsole(SerialConsole console) {
 	this.console = console;
+
+	outBuffer = new byte[Config.getInteger("SynchConsole.bufferSize", 128)];
+	inBuffer =
+	    new byte[Config.getInteger("SynchConsole.inputBufferSize", 256)];
+	canonical = Config.getBoolean("SynchConsole.canonical", false);
 	
 	Runnable receiveHandler = new Runnable() {
 	    public void run() { receiveInterrupt(); }
@@ -34,26 +52,87 @@ public class SynchConsole {
      * @param	block	<tt>true</tt> if <tt>readByte()</tt> should wait for a
      *			byte if none is available.
      * @return	the next byte read, or -1 if <tt>block</tt> was <tt>false</tt>
-     *		and no byte was available.
+     *		and no byte was available, or if the input has ended.
      */
     public int readByte(boolean block) {
-	int value;
+	// make sure any prompt is visible before waiting for the answer
+	flush();
+
+	int value = -1;
 	boolean intStatus = Machine.interrupt().disable();	
 	readLock.acquire();
 
-	if (block || charAvailable) {
-	    charAvailable = false;
-	    readWait.P();
+	while (block && inCount == 0 && !endOfInput)
+	    waitForInput();
+
+	if (inCount > 0)
+	    value = take() & 0xFF;
+
+	readLock.release();
+	Machine.interrupt().restore(intStatus);
+	return value;
+    }
+
+    /**
+     * Read bytes that have arrived into a buffer. In canonical mode, waits
+     * for a whole line, or for the input to end, and stops after the newline;
+     * otherwise returns only what has already arrived, without waiting.
+     *
+     * @param	buf	the buffer to fill.
+     * @param	offset	the offset in the buffer of the first byte.
+     * @param	length	the most bytes to read.
+     * @return	the number of bytes read.
+     */
+    public int read(byte[] buf, int offset, int length) {
+	flush();
+
+	boolean intStatus = Machine.interrupt().disable();
+	readLock.acquire();
 
-	    value = console.readByte();
-	    Lib.assertTrue(value != -1);
+	// a full buffer can never complete its line, so hand it over as is
+	if (canonical && length > 0) {
+	    while (lines == 0 && inCount < inBuffer.length && !endOfInput)
+		waitForInput();
 	}
-	else {
-	    value = -1;
+
+	int count = 0;
+	while (count < length && inCount > 0) {
+	    byte value = take();
+	    buf[offset + count++] = value;
+	    if (canonical && value == '\n')
+		break;
 	}
 
 	readLock.release();
 	Machine.interrupt().restore(intStatus);
+	return count;
+    }
+
+    /**
+     * Sleep until the receive interrupt adds a byte to the input buffer.
+     * Called with interrupts disabled.
+     */
+    private void waitForInput() {
+	readerWaiting = true;
+	readWait.P();
+    }
+
+    /**
+     * Remove the oldest byte from the input buffer. If a byte was left in the
+     * console because the buffer was full, it is moved into the freed space.
+     */
+    private byte take() {
+	byte value = inBuffer[inHead];
+	inHead = (inHead + 1) % inBuffer.length;
+	inCount--;
+	if (value == '\n')
+	    lines--;
+
+	if (inputPending) {
+	    inputPending = false;
+	    receive();
+	}
+
 	return value;
     }
 
@@ -67,22 +146,95 @@ public class SynchConsole {
     }
 
     private void receiveInterrupt() {
-	charAvailable = true;
-	readWait.V();
+	if (console.atEndOfInput()) {
+	    endOfInput = true;
+	}
+	else if (inCount == inBuffer.length) {
+	    // leave it in the console until take() makes room
+	    inputPending = true;
+	    return;
+	}
+	else {
+	    receive();
+	}
+
+	if (readerWaiting) {
+	    readerWaiting = false;
+	    readWait.V();
+	}
+    }
+
+    private void receive() {
+	int value = console.readByte();
+	Lib.assertTrue(value != -1);
+
+	inBuffer[(inHead + inCount) % inBuffer.length] = (byte) value;
+	inCount++;
+	if (value == '\n')
+	    lines++;
     }
 
     /**
-     * Send a byte. Blocks until the send is complete.
+     * Send a byte. The byte is buffered, and the buffer is sent if the byte
+     * is a newline or fills it.
      *
      * @param	value	the byte to be sent (the upper 24 bits are ignored).
      */
     public void writeByte(int value) {
 	writeLock.acquire();
-	console.writeByte(value);
-	writeWait.P();
+	append((byte) value);
+	if (value == '\n')
+	    flushBuffer();
+	writeLock.release();
+    }
+
+    /**
+     * Send bytes from a buffer. The bytes are buffered, and the buffer is sent
+     * whenever it fills and once more at the end if the bytes included a
+     * newline.
+     *
+     * @param	buf	the buffer holding the bytes.
+     * @param	offset	the offset in the buffer of the first byte.
+     * @param	length	the number of bytes to send.
+     */
+    public void writeBytes(byte[] buf, int offset, int length) {
+	writeLock.acquire();
+
+	boolean newline = false;
+	for (int i=0; i<length; i++) {
+	    append(buf[offset+i]);
+	    newline |= (buf[offset+i] == '\n');
+	}
+	if (newline)
+	    flushBuffer();
+
 	writeLock.release();
     }
 
+    /**
+     * Send any buffered bytes. Blocks until the send is complete.
+     */
+    public void flush() {
+	writeLock.acquire();
+	flushBuffer();
+	writeLock.release();
+    }
+
+    private void append(byte value) {
+	outBuffer[outCount++] = value;
+	if (outCount == outBuffer.length)
+	    flushBuffer();
+    }
+
+    private void flushBuffer() {
+	if (outCount == 0)
+	    return;
+
+	console.writeBytes(outBuffer, 0, outCount);
+	outCount = 0;
+	writeWait.P();
+    }
+
     /**
      * Return an <tt>OpenFile</tt> that can be used to write this as a file.
      *
@@ -96,7 +248,18 @@ public class SynchConsole {
 	writeWait.V();
     }
 
-    private boolean charAvailable = false;
+    private byte[] inBuffer;
+    private int inHead = 0, inCount = 0;
+    /** The number of newlines in the input buffer. */
+    private int lines = 0;
+    private boolean inputPending = false;
+    /** Set once the console reports that no more input will arrive. */
+    private boolean endOfInput = false;
+    private boolean readerWaiting = false;
+    private boolean canonical;
+
+    private byte[] outBuffer;
+    private int outCount = 0;
 
     private SerialConsole console;
     private Lock readLock = new Lock();
@@ -113,6 +276,9 @@ public class SynchConsole {
 	}
 	
 	public void close() {
+	    if (canWrite)
+		SynchConsole.this.flush();
+
 	    canRead = canWrite = false;
 	}
 
@@ -120,25 +286,14 @@ public class SynchConsole {
 	    if (!canRead)
 		return 0;
 
-	    int i;
-	    for (i=0; i<length; i++) {
-		int value = SynchConsole.this.readByte(false);
-		if (value == -1)
-		    break;
-		
-		buf[offset+i] = (byte) value;
-	    }
-
-	    return i;
+	    return SynchConsole.this.read(buf, offset, length);
 	}
 
 	public int write(byte[] buf, int offset, int length) {
 	    if (!canWrite)
 		return 0;
 	    
-	    for (int i=0; i<length; i++)
-		SynchConsole.this.writeByte(buf[offset+i]);
-	    
+	    SynchConsole.this.writeBytes(buf, offset, length);
 	    return length;
 	}
 
@@ -3,6 +3,7 @@ package nachos.userprog;
 
 import nachos.machine.*;
 import nachos.threads.*;
+import nachos.filesys.*;
 import java.util.LinkedList;
 //import java.util.concurrent.locks.Lock;
 
@@ -27,6 +28,10 @@ public class UserKernel extends ThreadedKernel {
 		super.initialize(args);
 
 		console = new SynchConsole(Machine.console());
+		processTable = new ProcessTable(
+				Config.getInteger("UserKernel.maxProcesses", 1024));
+		executableCache = new ExecutableCache(
+				Config.getInteger("UserKernel.executableCacheBytes", 32*1024));
 
 		Machine.processor().setExceptionHandler(new Runnable() {
 			public void run() {
@@ -62,12 +67,15 @@ public class UserKernel extends ThreadedKernel {
 		System.out.println("Testing the console device. Typed characters");
 		System.out.println("will be echoed until q is typed.");
 
-		char c;
+		int c;
 
-		do {
-			c = (char) console.readByte(true);
+		// stop early if the input ends without a q
+		while ((c = console.readByte(true)) != -1) {
 			console.writeByte(c);
-		} while (c != 'q');
+			if (c == 'q')
+				break;
+		}
+		console.flush();
 
 		System.out.println("");
 	}
@@ -130,9 +138,19 @@ public class UserKernel extends ThreadedKernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		console.flush();
+		syncFileSystem();
 		super.terminate();
 	}
 	
+	/**
+	 * Write back any file data the file system is caching in memory.
+	 */
+	public static void syncFileSystem() {
+		if (ThreadedKernel.fileSystem instanceof Syncable)
+			((Syncable) ThreadedKernel.fileSystem).sync();
+	}
+
 	public static int allocatePage() {
 		int page = -1;
 
@@ -169,6 +187,12 @@ public class UserKernel extends ThreadedKernel {
 
 	/** Globally accessible reference to the synchronized console. */
 	public static SynchConsole console;
+
+	/** Globally accessible table of user processes. */
+	public static ProcessTable processTable;
+
+	/** Globally accessible cache of parsed executables. */
+	public static ExecutableCache executableCache;
 	// variables
 	private static Lock pageLock;
 	
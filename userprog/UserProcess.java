@@ -3,7 +3,6 @@ package nachos.userprog;
 import nachos.machine.*;
 import nachos.threads.*;
 
-import java.io.EOFException;
 import java.util.*;
 
 /**
@@ -29,25 +28,17 @@ public class UserProcess {
 			pageTable[i] = new TranslationEntry(i, 0, false, false, false, false);
 		}
 
-		counterLock = new Lock();
-		counterLock.acquire();
-		counterLock.release();
-		status=new Lock();
+		files = new FileTable();
 
-		type = new OpenFile[16];
-		boolean inStatus=Machine.interrupt().disable();
-		Machine.interrupt().restore(inStatus);
-
-		processID = counter++;
+		processID = UserKernel.processTable.allocate(this);
 
 		stdin = UserKernel.console.openForReading();
 		stdout = UserKernel.console.openForWriting();
-		type[0] = stdin;
-		type[1] = stdout;
+		files.add(stdin);
+		files.add(stdout);
 
 		parent=null;
-		children=new LinkedList<UserProcess>();
-		childrenExitStatus=new HashMap<Integer,Integer>();
+		children=new HashSet<UserProcess>();
 
 
 
@@ -347,33 +338,22 @@ public class UserProcess {
 	protected boolean load(String name, String[] args) {
 		Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
-		OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-		if (executable == null) {
-			Lib.debug(dbgProcess, "\topen failed");
+		executable = UserKernel.executableCache.open(name);
+		if (executable == null)
 			return false;
-		}
 
-		try {
-			coff = new Coff(executable);
-		} catch (EOFException e) {
-			executable.close();
-			Lib.debug(dbgProcess, "\tcoff load failed");
-			return false;
-		}
+		coff = executable.getCoff();
 
 		// make sure the sections are contiguous and start at page 0
 		numPages = 0;
 		for (int s = 0; s < coff.getNumSections(); s++) {
 			CoffSection section = coff.getSection(s);
 			if (section.getFirstVPN() != numPages) {
-				coff.close();
 				Lib.debug(dbgProcess, "\tfragmented executable");
-				return false;
-			}
-			if (!allocate(numPages, section.getLength(), section.isReadOnly())) {
-				releaseResource();
-				return false;
+				return abortLoad();
 			}
+			if (!allocate(numPages, section.getLength(), section.isReadOnly()))
+				return abortLoad();
 		}
 
 		// make sure the argv array will fit in one page
@@ -385,29 +365,24 @@ public class UserProcess {
 			argsSize += 4 + argv[i].length + 1;
 		}
 		if (argsSize > pageSize) {
-			coff.close();
 			Lib.debug(dbgProcess, "\targuments too long");
-			return false;
+			return abortLoad();
 		}
 
 		// program counter initially points at the program entry point
 		initialPC = coff.getEntryPoint();
 
 		// next comes the stack; stack pointer initially points to top of it
-		if (!allocate(numPages, stackPages, false)) {
-			releaseResource();
-			return false;
-		}
+		if (!allocate(numPages, stackPages, false))
+			return abortLoad();
 		initialSP = numPages * pageSize;
 
 		// and finally reserve 1 page for arguments
-		if (!allocate(numPages, 1, false)) {
-			releaseResource();
-			return false;
-		}
+		if (!allocate(numPages, 1, false))
+			return abortLoad();
 
 		if (!loadSections())
-			return false;
+			return abortLoad();
 
 		// store arguments in last page
 		int entryOffset = (numPages - 1) * pageSize;
@@ -429,6 +404,19 @@ public class UserProcess {
 		return true;
 	}
 
+	/**
+	 * Undo a partly finished <tt>load()</tt>: free the pages allocated so far
+	 * and release the executable, so the cache can evict it again.
+	 * 
+	 * @return <tt>false</tt>, for <tt>load()</tt> to return.
+	 */
+	private boolean abortLoad() {
+		releaseResource();
+		UserKernel.executableCache.close(executable);
+		executable = null;
+		return false;
+	}
+
 	/**
 	 * Allocates memory for this process, and loads the COFF sections into
 	 * memory. If this returns successfully, the process will definitely be run
@@ -438,7 +426,6 @@ public class UserProcess {
 	 */
 	protected boolean loadSections() {
 		if (numPages > Machine.processor().getNumPhysPages()) {
-			coff.close();
 			Lib.debug(dbgProcess, "\tinsufficient physical memory");
 			return false;
 		}
@@ -456,7 +443,7 @@ public class UserProcess {
 				TranslationEntry te = lookUpPageTable(vpn);
 				if (te == null)
 					return false;
-				section.loadPage(i, te.ppn);
+				executable.loadPage(s, i, te.ppn);
 			}
 		}
 
@@ -468,13 +455,8 @@ public class UserProcess {
 	 */
 	protected void unloadSections() {
 		releaseResource();
-		for(int i=0;i<16;i++){
-			if(type[i]!=null){
-				type[i].close();
-				type[i]=null;
-			}	
-		}
-		coff.close();
+		files.closeAll();
+		UserKernel.executableCache.close(executable);
 
 	}
 
@@ -513,27 +495,22 @@ public class UserProcess {
 			return 0;
 		}
 
-		Machine.halt();
+		// let the kernel flush and clean up before the machine stops
+		Kernel.kernel.terminate();
 
-		Lib.assertNotReached("Machine.halt() did not halt machine!");
+		Lib.assertNotReached("Kernel.terminate() did not halt machine!");
 		return 0;
 	}
 
 	private int handleRead(int typeD,int bufferVAddr,int size){
-		if(typeD<0||typeD>15){
-			Lib.debug(dbgProcess, "Read:Descriptor out of range");
-			return -1;
-		}
 		if(size<0){
 			Lib.debug(dbgProcess, "Read:Size to read cannot be negative");
 			return -1;
 		}
-		OpenFile file;
-		if(type[typeD]==null){
+		OpenFile file=files.get(typeD);
+		if(file==null){
 			Lib.debug(dbgProcess, "Read:File doesn't exist in the descriptor table");
 			return -1;
-		}else{
-			file=type[typeD];
 		}
 		int length=0;
 		byte[] reader=new byte[size];
@@ -558,50 +535,38 @@ public class UserProcess {
 			Lib.debug(dbgProcess, "Create:Read filename failed");
 			return -1;
 		}
-		int availableIndex=-1;
-		for(int i=0;i<16;i++){
-			if(type[i]==null){
-				availableIndex=i;
-				break;
-			}
+		OpenFile file=ThreadedKernel.fileSystem.open(fileName, true);
+		UserKernel.executableCache.invalidate(fileName);
+		if(file==null){
+			Lib.debug(dbgProcess, "Create:Create failed");
+			return-1;
 		}
-		if(availableIndex==-1){
-			Lib.debug(dbgProcess, "Create:Cannot create more than 16 files");
-			return -1;
-		}else{
-			OpenFile file=ThreadedKernel.fileSystem.open(fileName, true);
-			if(file==null){
-				Lib.debug(dbgProcess, "Create:Create failed");
-				return-1;
-			}else{
-				type[availableIndex]=file;
-				return availableIndex;
-			}		
-		}	
+		int fd=files.add(file);
+		if(fd==-1){
+			Lib.debug(dbgProcess, "Create:Descriptor table is full");
+			file.close();
+		}
+		return fd;
 
 	}
 
 	private int handleWrite(int typeD,int bufferVAddr,int size){
-		if(typeD<0||typeD>15){
-			Lib.debug(dbgProcess,"Wirte:type out of range");
-			return -1;
-		}
 		if(size<0){
 			Lib.debug(dbgProcess, "Write:Size  cannot be negative");
 			return -1;	
 		}
-		OpenFile file;
-		if(type[typeD]==null){
+		OpenFile file=files.get(typeD);
+		if(file==null){
 			Lib.debug(dbgProcess, "Write:File doesn't exist");
 			return -1;
-		}else{
-			file=type[typeD];
 		}
 		int length=0;
 		byte[] writer=new byte[size];
 		length=readVirtualMemory(bufferVAddr,writer,0,size);
 		int count=0;
 		count=file.write(writer, 0, length);
+		if(file.getFileSystem()!=null)
+			UserKernel.executableCache.invalidate(file.getName());
 		//System.out.println(size==count);
 		if(count==-1){
 			Lib.debug(dbgProcess, "Write:Error occured");
@@ -610,19 +575,13 @@ public class UserProcess {
 		return count;
 	}
 
-	private int handleExit(int status){
-		if(parent!=null){
-			parent.status.acquire();
-			parent.childrenExitStatus.put(processID, status);
-			parent.status.release();
-
-		}
+	protected int handleExit(int status){
 		unloadSections();
-		int childrenNum=children.size();
-		for(int i=0;i<childrenNum;i++){
-			UserProcess child=children.removeFirst();
-			child.parent=null;
+		for(UserProcess child : children){
+			UserKernel.processTable.orphan(child);
 		}
+		children.clear();
+		UserKernel.processTable.exit(this, status);
 		System.out.println("exit"+processID+status);
 
 		if(processID==0){
@@ -638,46 +597,25 @@ public class UserProcess {
 		if(processID<0||statusV<0){
 			return -1;
 		}
-		UserProcess child=null;
-		int childrenNum=children.size();
-		for(int i=0;i<childrenNum;i++){
-			if(children.get(i).processID==processID){
-				child=children.get(i);
-				break;
-			}
-		}
-
-		if(child==null){
+		UserProcess child=UserKernel.processTable.get(processID);
+		if(child==null||child.parent!=this){
 			Lib.debug(dbgProcess, "handleJoin:processID is not the child");
 			return -1;
 		}
 
 		child.thread.join();
 
-		child.parent=null;
-
 		children.remove(child);
+		int stat=UserKernel.processTable.reap(processID);
 
-		status.acquire();
-		Integer stat=childrenExitStatus.get(child.processID);
-		status.release();
-
-		if(stat==null){
-			Lib.debug(dbgProcess, "Join:Cannot find the exit status of the child");
+		byte[] buffer=Lib.bytesFromInt(stat);
+		int count=writeVirtualMemory(statusV,buffer);
+		if(count==4){
+			return 1;
+		}else{
+			Lib.debug(dbgProcess, "Join:Write status failed");
 			return 0;
 		}
-		else{
-
-			byte[] buffer=new byte[4];
-			buffer=Lib.bytesFromInt(stat);
-			int count=writeVirtualMemory(statusV,buffer);
-			if(count==4){
-				return 1;
-			}else{
-				Lib.debug(dbgProcess, "Join:Write status failed");
-				return 0;
-			}
-		}
 	}
 
 	private int handleExec(int name,int num,int argsV ){
@@ -713,12 +651,19 @@ public class UserProcess {
 			args[i]=arg;
 		}
 		UserProcess child=UserProcess.newUserProcess();
+		if(child.processID==-1){
+			Lib.debug(dbgProcess, "Exec:Process table is full");
+			child.files.closeAll();
+			return -1;
+		}
+		child.parent=this;
 		boolean isSuccessful=child.execute(fileName, args);
 		if(!isSuccessful){
 			Lib.debug(dbgProcess, "Exec:Execute child process failed");
+			child.files.closeAll();
+			UserKernel.processTable.free(child.processID);
 			return -1;
 		}
-		child.parent=this;
 		this.children.add(child);
 		int id=child.processID;
 		return id;
@@ -735,41 +680,25 @@ public class UserProcess {
 			return -1;
 
 		}
-		int availableIndex=-1;
-		for(int i=0;i<16;i++){
-			if(type[i]==null){
-				availableIndex=i;
-				break;
-			}
-		}
-		if(availableIndex==-1){
-			Lib.debug(dbgProcess, "Open:Cannot make more than 15 files");
+		OpenFile file=ThreadedKernel.fileSystem.open(fileName, false);
+		if(file==null){
+			Lib.debug(dbgProcess, "Open:Open failed");
 			return -1;
-		}else{
-			OpenFile file=ThreadedKernel.fileSystem.open(fileName, false);
-			if(file==null){
-				Lib.debug(dbgProcess, "Open:Open failed");
-				return -1;
-			}else{
-				type[availableIndex]=file;
-				return availableIndex;
-			}
 		}
+		int fd=files.add(file);
+		if(fd==-1){
+			Lib.debug(dbgProcess, "Open:Descriptor table is full");
+			file.close();
+		}
+		return fd;
 	}
 
 
 
 	private int handleClose(int typeD){
-		if(typeD<0||typeD>15){
-			Lib.debug(dbgProcess, "Close:Descriptor out of range");
-			return -1;
-		}
-		if(type[typeD]==null){
+		if(!files.close(typeD)){
 			Lib.debug(dbgProcess, "Close:File doesn't exist in the descriptor table");
 			return -1;
-		}else{
-			type[typeD].close();
-			type[typeD]=null;
 		}
 		return 0;
 	}
@@ -785,20 +714,12 @@ public class UserProcess {
 			Lib.debug(dbgProcess, "Unlink:Read filename failed");
 			return -1;
 		}
-		OpenFile file;
-		int index=-1;
-		for(int i=0;i<16;i++){
-			file=type[i];
-			if(file!=null&&file.getName().compareTo(fileName)==0){
-				index=i;
-				break;
-			}
-		}	
-		if(index!=-1){
+		if(files.isOpen(fileName)){
 			Lib.debug(dbgProcess, "Unlink:File should be closed first");
 			return -1;
 		}
 		boolean isSuccessful=ThreadedKernel.fileSystem.remove(fileName);
+		UserKernel.executableCache.invalidate(fileName);
 		if(!isSuccessful){
 			Lib.debug(dbgProcess, "Unlink:Remove failed");
 			return -1;
@@ -811,10 +732,17 @@ public class UserProcess {
 
 
 
+	private int handleSync(){
+		UserKernel.syncFileSystem();
+		return 0;
+	}
+
+
+
 	protected static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
 			syscallJoin = 3, syscallCreate = 4, syscallOpen = 5,
 			syscallRead = 6, syscallWrite = 7, syscallClose = 8,
-			syscallUnlink = 9;
+			syscallUnlink = 9, syscallSync = 14;
 
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -835,6 +763,7 @@ public class UserProcess {
 	 *								</tt></td></tr>
 	 * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
 	 * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+	 * <tr><td>14</td><td><tt>int  sync();</tt></td></tr>
 	 * </table>
 	 * 
 	 * @param	syscall	the syscall number.
@@ -870,6 +799,9 @@ public class UserProcess {
 			Lib.debug(dbgProcess, "Unlink called from process " + processID);
 			return handleUnlink(a0);
 
+		case syscallSync:
+			return handleSync();
+
 		case syscallRead:
 			return handleRead(a0, a1, a2);
 
@@ -922,6 +854,9 @@ public class UserProcess {
 	/** The program being run by this process. */
 	protected Coff coff;
 
+	/** The cached executable that coff belongs to. */
+	protected Executable executable;
+
 	/** This process's page table. */
 	protected TranslationEntry[] pageTable;
 
@@ -929,8 +864,7 @@ public class UserProcess {
 	protected int numPages;
 	protected OpenFile stdin;
 	protected OpenFile stdout;
-	protected OpenFile[] type;
-	protected OpenFile[] descriptors;
+	protected FileTable files;
 
 	/** The number of pages in the program's stack. */
 	protected final int stackPages = Config.getInteger("Processor.numStackPages", 8);
@@ -939,19 +873,13 @@ public class UserProcess {
 	protected int initialPC, initialSP;
 	protected int argc, argv;
 
-	//Instantiate locks
-	protected Lock counterLock;
-	protected Lock status;
-
-	// parents and children list/hash
+	// parents and children; exit statuses are kept in the process table
 	protected UserProcess parent;
-	protected LinkedList<UserProcess> children;
-	protected HashMap<Integer,Integer> childrenExitStatus;
+	protected HashSet<UserProcess> children;
 
 	//Instantiation for thread(s)
 	protected UThread thread;
 
-	//Instantiate counter and processID
-	protected static int counter = 0;
+	//processID, from UserKernel.processTable
 	protected int processID;
 }
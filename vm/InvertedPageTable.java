@@ -0,0 +1,146 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A global inverted page table. There is one slot for each physical page,
+ * holding the translation currently stored in that page and the process that
+ * owns it.
+ *
+ * <p>
+ * Slots are found by (process ID, virtual page number) through a hash anchor
+ * table whose chains run through the slots themselves, so a lookup costs one
+ * hash and a short chain walk no matter how many processes are running, and
+ * nothing is allocated after construction.
+ */
+public class InvertedPageTable {
+    /**
+     * Allocate a new inverted page table.
+     *
+     * @param	numPhysPages	the number of physical pages to track.
+     */
+    public InvertedPageTable(int numPhysPages) {
+	int numBuckets = 1;
+	while (numBuckets < numPhysPages)
+	    numBuckets <<= 1;
+
+	anchors = new int[numBuckets];
+	Arrays.fill(anchors, -1);
+
+	owners = new int[numPhysPages];
+	processes = new VMProcess[numPhysPages];
+	next = new int[numPhysPages];
+	entries = new TranslationEntry[numPhysPages];
+    }
+
+    /**
+     * Find the resident translation for a virtual page of a process.
+     *
+     * @param	pid	the ID of the owning process.
+     * @param	vpn	the virtual page number.
+     * @return	the translation entry, or <tt>null</tt> if the page is not
+     *		resident.
+     */
+    public TranslationEntry lookup(int pid, int vpn) {
+	for (int ppn=anchors[hash(pid, vpn)]; ppn != -1; ppn=next[ppn]) {
+	    if (owners[ppn] == pid && entries[ppn].vpn == vpn)
+		return entries[ppn];
+	}
+
+	return null;
+    }
+
+    /**
+     * Record that <tt>entry.ppn</tt> now holds <tt>entry.vpn</tt> of the
+     * specified process. The physical page must not already be mapped.
+     *
+     * @param	process	the owning process.
+     * @param	entry	the valid translation entry to record.
+     */
+    public void insert(VMProcess process, TranslationEntry entry) {
+	int ppn = entry.ppn;
+	Lib.assertTrue(entries[ppn] == null);
+
+	int pid = process.getprocessID();
+	int bucket = hash(pid, entry.vpn);
+	owners[ppn] = pid;
+	processes[ppn] = process;
+	entries[ppn] = entry;
+	next[ppn] = anchors[bucket];
+	anchors[bucket] = ppn;
+    }
+
+    /**
+     * Forget the mapping held in the specified physical page, if any.
+     *
+     * @param	ppn	the physical page number.
+     */
+    public void remove(int ppn) {
+	if (entries[ppn] == null)
+	    return;
+
+	int bucket = hash(owners[ppn], entries[ppn].vpn);
+	if (anchors[bucket] == ppn) {
+	    anchors[bucket] = next[ppn];
+	}
+	else {
+	    int prev = anchors[bucket];
+	    while (next[prev] != ppn)
+		prev = next[prev];
+	    next[prev] = next[ppn];
+	}
+
+	entries[ppn] = null;
+	processes[ppn] = null;
+	next[ppn] = -1;
+    }
+
+    /**
+     * Return the translation held in the specified physical page.
+     *
+     * @param	ppn	the physical page number.
+     * @return	the translation entry, or <tt>null</tt> if the page is free.
+     */
+    public TranslationEntry getEntry(int ppn) {
+	return entries[ppn];
+    }
+
+    /**
+     * Return the ID of the process owning the specified physical page. Only
+     * meaningful if <tt>getEntry(ppn)</tt> is not <tt>null</tt>.
+     *
+     * @param	ppn	the physical page number.
+     * @return	the ID of the owning process.
+     */
+    public int getOwner(int ppn) {
+	return owners[ppn];
+    }
+
+    /**
+     * Return the process owning the specified physical page.
+     *
+     * @param	ppn	the physical page number.
+     * @return	the owning process, or <tt>null</tt> if the page is free.
+     */
+    public VMProcess getProcess(int ppn) {
+	return processes[ppn];
+    }
+
+    private int hash(int pid, int vpn) {
+	int h = pid*0x9E3779B1 + vpn;
+	return (h ^ (h >>> 16)) & (anchors.length-1);
+    }
+
+    /** Head of each hash chain, or -1 if the chain is empty. */
+    private int[] anchors;
+    /** The ID of the process owning each physical page. */
+    private int[] owners;
+    /** The process owning each physical page, or <tt>null</tt>. */
+    private VMProcess[] processes;
+    /** The next physical page on the same hash chain, or -1. */
+    private int[] next;
+    /** The translation held in each physical page, or <tt>null</tt>. */
+    private TranslationEntry[] entries;
+}
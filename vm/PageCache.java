@@ -0,0 +1,253 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.HashMap;
+
+/**
+ * A kernel-wide cache of executable pages, keyed on (file, section, page).
+ * Each cached page occupies one physical page that is mapped read-only into
+ * every process running the same executable, so extra copies of a program
+ * only need physical memory for their private pages. Writable sections are
+ * shared the same way until the first store, which gives the writer its own
+ * copy.
+ *
+ * <p>
+ * A cached page stays resident after its last mapping goes away, so the next
+ * process to run the program finds it without reading the file. Cached pages
+ * are never dirty, so evicting one only has to invalidate its mappings.
+ *
+ * <p>
+ * The same mechanism tracks the anonymous pages that a forked child shares
+ * with its parent. These have no key and are freed as soon as the last
+ * mapping goes away; evicting one writes it to a single swap slot that every
+ * mapping then refers to.
+ */
+public class PageCache {
+    /**
+     * Allocate a new, empty page cache.
+     *
+     * @param	numPhysPages	the number of physical pages to track.
+     */
+    public PageCache(int numPhysPages) {
+	keys = new String[numPhysPages];
+	anonymous = new boolean[numPhysPages];
+	mappings = new Mapping[numPhysPages];
+    }
+
+    /**
+     * Build the cache key for a page of an executable.
+     *
+     * @param	executableKey	the key of the executable, from
+     *				<tt>Executable.getKey()</tt>.
+     * @param	section		the section number.
+     * @param	spn		the page number within the section.
+     * @return	the cache key.
+     */
+    public static String makeKey(String executableKey, int section, int spn) {
+	return executableKey + ":" + section + ":" + spn;
+    }
+
+    /**
+     * Find a cached page.
+     *
+     * @param	key	the cache key, from <tt>makeKey()</tt>.
+     * @return	the physical page holding it, or -1 if it is not cached.
+     */
+    public int lookup(String key) {
+	Integer ppn = frames.get(key);
+	return (ppn == null) ? -1 : ppn.intValue();
+    }
+
+    /**
+     * Add a freshly loaded physical page to the cache.
+     *
+     * @param	key	the cache key.
+     * @param	ppn	the physical page holding the contents.
+     */
+    public void add(String key, int ppn) {
+	Lib.assertTrue(keys[ppn] == null && !frames.containsKey(key));
+
+	keys[ppn] = key;
+	frames.put(key, new Integer(ppn));
+    }
+
+    /**
+     * Turn a private physical page into an anonymous shared page. The caller
+     * maps it into each sharing process with <tt>map()</tt>.
+     *
+     * @param	ppn	the physical page to share.
+     */
+    public void addAnonymous(int ppn) {
+	Lib.assertTrue(!contains(ppn));
+
+	anonymous[ppn] = true;
+    }
+
+    /**
+     * Test whether a physical page is shared through the cache.
+     *
+     * @param	ppn	the physical page number.
+     * @return	<tt>true</tt> if the page is a cached executable page or an
+     *		anonymous shared page.
+     */
+    public boolean contains(int ppn) {
+	return keys[ppn] != null || anonymous[ppn];
+    }
+
+    /**
+     * Test whether a physical page is an anonymous shared page.
+     *
+     * @param	ppn	the physical page number.
+     * @return	<tt>true</tt> if the page was shared by a fork.
+     */
+    public boolean isAnonymous(int ppn) {
+	return anonymous[ppn];
+    }
+
+    /**
+     * Test whether a translation entry is the only mapping of a shared page.
+     *
+     * @param	ppn	the shared physical page.
+     * @param	entry	the translation entry passed to <tt>map()</tt>.
+     * @return	<tt>true</tt> if no other process maps the page.
+     */
+    public boolean isOnlyMapping(int ppn, TranslationEntry entry) {
+	return mappings[ppn] != null && mappings[ppn].entry == entry &&
+	    mappings[ppn].next == null;
+    }
+
+    /**
+     * Test whether any process maps a shared page.
+     *
+     * @param	ppn	the shared physical page.
+     * @return	<tt>true</tt> if the page has at least one mapping.
+     */
+    public boolean isMapped(int ppn) {
+	return mappings[ppn] != null;
+    }
+
+    /**
+     * Record that a process has mapped a shared page.
+     *
+     * @param	ppn	the shared physical page.
+     * @param	process	the mapping process.
+     * @param	entry	the process's translation entry for the page.
+     */
+    public void map(int ppn, VMProcess process, TranslationEntry entry) {
+	Lib.assertTrue(contains(ppn));
+
+	mappings[ppn] = new Mapping(process, entry, mappings[ppn]);
+    }
+
+    /**
+     * Record that a process no longer maps a shared page.
+     *
+     * @param	ppn	the shared physical page.
+     * @param	entry	the translation entry passed to <tt>map()</tt>.
+     */
+    public void unmap(int ppn, TranslationEntry entry) {
+	Mapping prev = null;
+	for (Mapping m=mappings[ppn]; m != null; prev=m, m=m.next) {
+	    if (m.entry == entry) {
+		if (prev == null)
+		    mappings[ppn] = m.next;
+		else
+		    prev.next = m.next;
+		return;
+	    }
+	}
+    }
+
+    /**
+     * Test and clear the used bits of every mapping of a shared page, for the
+     * clock algorithm.
+     *
+     * @param	ppn	the shared physical page.
+     * @return	<tt>true</tt> if any mapping was used since the last call.
+     */
+    public boolean clearUsed(int ppn) {
+	boolean used = false;
+	for (Mapping m=mappings[ppn]; m != null; m=m.next) {
+	    used |= m.entry.used;
+	    m.entry.used = false;
+	}
+
+	return used;
+    }
+
+    /**
+     * Drop a page from the cache, invalidating every mapping of it. An
+     * anonymous page that is not already in the swap file is written to a
+     * new slot, shared by all of its mappings. The physical page then belongs
+     * to the caller. Called with the memory lock held.
+     *
+     * @param	ppn	the shared physical page.
+     */
+    public void evict(int ppn) {
+	Lib.debug(dbgVM, "\tevicting shared page "
+		  + (anonymous[ppn] ? "ppn " + ppn : keys[ppn]));
+
+	// invalidate every mapping before anything blocks
+	for (Mapping m=mappings[ppn]; m != null; m=m.next)
+	    m.process.unmapShared(m.entry.vpn);
+
+	Mapping first = mappings[ppn];
+	if (anonymous[ppn] &&
+	    first.process.getSwapSlot(first.entry.vpn) == -1) {
+	    SwapFile swap = VMKernel.swap();
+	    int slot = swap.allocate(1);
+	    for (Mapping m=first; m != null; m=m.next) {
+		if (m != first)
+		    swap.share(slot);
+		m.process.setSwapSlot(m.entry.vpn, slot);
+	    }
+
+	    byte[] data = new byte[pageSize];
+	    System.arraycopy(Machine.processor().getMemory(), ppn*pageSize,
+			     data, 0, pageSize);
+	    swap.write(slot, data);
+	}
+
+	remove(ppn);
+    }
+
+    /**
+     * Forget a shared page without touching its mappings. The physical page
+     * then belongs to the caller.
+     *
+     * @param	ppn	the shared physical page.
+     */
+    public void remove(int ppn) {
+	if (keys[ppn] != null)
+	    frames.remove(keys[ppn]);
+
+	keys[ppn] = null;
+	anonymous[ppn] = false;
+	mappings[ppn] = null;
+    }
+
+    private static class Mapping {
+	Mapping(VMProcess process, TranslationEntry entry, Mapping next) {
+	    this.process = process;
+	    this.entry = entry;
+	    this.next = next;
+	}
+
+	VMProcess process;
+	TranslationEntry entry;
+	Mapping next;
+    }
+
+    /** The physical page holding each cached page. */
+    private HashMap<String, Integer> frames = new HashMap<String, Integer>();
+    /** The key of the page held in each physical page, or <tt>null</tt>. */
+    private String[] keys;
+    /** Whether each physical page is an anonymous shared page. */
+    private boolean[] anonymous;
+    /** The processes mapping each physical page. */
+    private Mapping[] mappings;
+
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgVM = 'v';
+}
@@ -0,0 +1,122 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A backing store for evicted pages, kept in a single file of the kernel's
+ * file system. The file is divided into page-sized slots; runs of adjacent
+ * slots can be allocated together so that several pages are written back
+ * with one file operation. A slot can be shared by several processes after
+ * a fork, so each slot keeps a count of the pages that refer to it.
+ */
+public class SwapFile {
+    /**
+     * Create a new, empty swap file.
+     *
+     * @param	name	the name of the file to use.
+     */
+    public SwapFile(String name) {
+	this.name = name;
+
+	file = ThreadedKernel.fileSystem.open(name, true);
+	Lib.assertTrue(file != null, "unable to create swap file " + name);
+    }
+
+    /**
+     * Reserve a run of adjacent free slots.
+     *
+     * @param	count	the number of slots needed.
+     * @return	the first slot of the run.
+     */
+    public int allocate(int count) {
+	int slot = usedSlots.nextClearBit(0);
+	while (true) {
+	    int nextUsed = usedSlots.nextSetBit(slot);
+	    if (nextUsed == -1 || nextUsed >= slot + count)
+		break;
+
+	    slot = usedSlots.nextClearBit(nextUsed);
+	}
+
+	usedSlots.set(slot, slot + count);
+	if (slot + count > refCounts.length)
+	    refCounts = Arrays.copyOf(refCounts,
+				      Math.max(slot + count, refCounts.length*2));
+	Arrays.fill(refCounts, slot, slot + count, 1);
+	return slot;
+    }
+
+    /**
+     * Add a reference to an allocated slot, for a page that now shares its
+     * contents with another process.
+     *
+     * @param	slot	the slot to share.
+     */
+    public void share(int slot) {
+	Lib.assertTrue(usedSlots.get(slot));
+
+	refCounts[slot]++;
+    }
+
+    /**
+     * Drop a reference to a slot. The slot is reused once the last page
+     * referring to it has released it.
+     *
+     * @param	slot	the slot to release.
+     */
+    public void free(int slot) {
+	Lib.assertTrue(usedSlots.get(slot));
+
+	if (--refCounts[slot] == 0)
+	    usedSlots.clear(slot);
+    }
+
+    /**
+     * Write whole pages to consecutive slots.
+     *
+     * @param	slot	the first slot to write.
+     * @param	data	the page contents; a multiple of the page size.
+     */
+    public void write(int slot, byte[] data) {
+	Lib.debug(dbgVM, "\tswap out " + data.length/pageSize
+		  + " page(s) at slot " + slot);
+
+	int written = file.write(slot*pageSize, data, 0, data.length);
+	Lib.assertTrue(written == data.length, "swap file write failed");
+    }
+
+    /**
+     * Read one slot into a physical page.
+     *
+     * @param	slot	the slot to read.
+     * @param	ppn	the physical page to fill.
+     */
+    public void read(int slot, int ppn) {
+	Lib.debug(dbgVM, "\tswap in slot " + slot + " to ppn " + ppn);
+
+	Lib.strictReadFile(file, slot*pageSize,
+			   Machine.processor().getMemory(), ppn*pageSize,
+			   pageSize);
+    }
+
+    /**
+     * Close and delete the swap file.
+     */
+    public void close() {
+	file.close();
+	ThreadedKernel.fileSystem.remove(name);
+    }
+
+    private String name;
+    private OpenFile file;
+    private BitSet usedSlots = new BitSet();
+    /** The number of pages referring to each slot. */
+    private int[] refCounts = new int[0];
+
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgVM = 'v';
+}
@@ -21,6 +21,11 @@ public class VMKernel extends UserKernel {
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	invertedPageTable =
+	    new InvertedPageTable(Machine.processor().getNumPhysPages());
+	pageCache = new PageCache(Machine.processor().getNumPhysPages());
+	memoryLock = new Lock();
     }
 
     /**
@@ -41,9 +46,96 @@ public class VMKernel extends UserKernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	// removing the swap file can block, so keep any process that is still
+	// running from paging in the meantime
+	memoryLock.acquire();
+	if (swapFile != null)
+	    swapFile.close();
+
 	super.terminate();
     }
 
+    /**
+     * Allocate a physical page. If none are free, a resident page is chosen
+     * with the clock algorithm and evicted: a private page is written to the
+     * swap file if it is dirty, and a cached executable page is unmapped from
+     * every process sharing it. The caller must hold <tt>memoryLock</tt>.
+     *
+     * @return	the physical page number, or -1 if every page is in use and
+     *		none can be evicted.
+     */
+    public static int allocatePage() {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	int ppn = UserKernel.allocatePage();
+	if (ppn != -1)
+	    return ppn;
+
+	// bring the current process's used/dirty bits up to date first
+	UserProcess current = currentProcess();
+	if (current instanceof VMProcess)
+	    ((VMProcess) current).syncTLB();
+
+	int numPhysPages = Machine.processor().getNumPhysPages();
+	for (int n=0; n<2*numPhysPages; n++) {
+	    ppn = clockHand;
+	    clockHand = (clockHand + 1) % numPhysPages;
+
+	    // second chance for pages touched since the hand last passed
+	    TranslationEntry entry = invertedPageTable.getEntry(ppn);
+	    if (entry != null) {
+		if (entry.used) {
+		    entry.used = false;
+		    continue;
+		}
+
+		invertedPageTable.getProcess(ppn).pageOut(entry.vpn);
+		return ppn;
+	    }
+
+	    if (pageCache.contains(ppn)) {
+		if (pageCache.clearUsed(ppn))
+		    continue;
+
+		pageCache.evict(ppn);
+		return ppn;
+	    }
+	}
+
+	return -1;
+    }
+
+    /**
+     * Return the swap file, creating it on first use.
+     *
+     * @return	the swap file.
+     */
+    public static SwapFile swap() {
+	if (swapFile == null)
+	    swapFile = new SwapFile(Config.getString("VMKernel.swapFile",
+						     "nachos.swp"));
+
+	return swapFile;
+    }
+
+    /**
+     * Globally accessible inverted page table, mapping every resident page to
+     * its owning process and virtual page number.
+     */
+    public static InvertedPageTable invertedPageTable;
+
+    /** Globally accessible cache of shared executable pages. */
+    public static PageCache pageCache;
+
+    /**
+     * Protects the inverted page table, the page cache, physical page allocation and the swap
+     * file. Held for the whole of a page-in, including any eviction.
+     */
+    public static Lock memoryLock;
+
+    private static SwapFile swapFile = null;
+    private static int clockHand = 0;
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
@@ -5,6 +5,8 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
  */
@@ -22,6 +24,17 @@ public class VMProcess extends UserProcess {
      */
     public void saveState() {
 	super.saveState();
+
+	if (!Machine.processor().hasTLB())
+	    return;
+
+	// remember which pages were cached so restoreState() can reload them
+	Processor processor = Machine.processor();
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    syncTLBEntry(tlbEntry);
+	    savedTLB[i] = tlbEntry.valid ? tlbEntry.vpn : -1;
+	}
     }
 
     /**
@@ -29,7 +42,53 @@ public class VMProcess extends UserProcess {
      * <tt>UThread.restoreState()</tt>.
      */
     public void restoreState() {
-	super.restoreState();
+	if (!Machine.processor().hasTLB()) {
+	    super.restoreState();
+	    return;
+	}
+
+	// pages may have been released while we were switched out, so reload
+	// the current translation rather than the saved copy
+	Processor processor = Machine.processor();
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry entry = null;
+	    if (savedTLB[i] != -1)
+		entry = residentEntry(savedTLB[i]);
+
+	    processor.writeTLBEntry(i, entry != null ? entry : invalidEntry);
+	}
+    }
+
+    /**
+     * Reserve virtual pages without backing them with physical memory. The
+     * entries stay invalid until <tt>handlePageFault()</tt> fills them in on
+     * first touch.
+     *
+     * @param	vpn		the first virtual page to reserve.
+     * @param	desiredPages	the number of pages to reserve.
+     * @param	readOnly	<tt>true</tt> if the pages are read-only.
+     * @return	<tt>true</tt> if successful.
+     */
+    public boolean allocate(int vpn, int desiredPages, boolean readOnly) {
+	if (vpn + desiredPages > pageTable.length) {
+	    int oldLength = pageTable.length;
+	    pageTable = Arrays.copyOf(pageTable,
+				      Math.max(vpn + desiredPages, oldLength*2));
+	    for (int i=oldLength; i<pageTable.length; i++)
+		pageTable[i] = new TranslationEntry(i, 0, false, false,
+						    false, false);
+
+	    swapSlots = Arrays.copyOf(swapSlots, pageTable.length);
+	    Arrays.fill(swapSlots, oldLength, swapSlots.length, -1);
+	}
+
+	for (int i=0; i<desiredPages; i++) {
+	    pageTable[vpn+i] = new TranslationEntry(vpn+i, 0, false, readOnly,
+						    false, false);
+	    numPages++;
+	}
+
+	return true;
     }
 
     /**
@@ -39,16 +98,674 @@ public class VMProcess extends UserProcess {
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	// nothing to copy up front; every page is filled on its first fault
+	return true;
     }
 
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
+	VMKernel.memoryLock.acquire();
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    TranslationEntry entry = pageTable[vpn];
+	    if (entry.valid) {
+		if (VMKernel.pageCache.contains(entry.ppn)) {
+		    // executable pages stay cached for the next run of the
+		    // program; anonymous ones go once nobody maps them
+		    VMKernel.pageCache.unmap(entry.ppn, entry);
+		    if (VMKernel.pageCache.isAnonymous(entry.ppn) &&
+			!VMKernel.pageCache.isMapped(entry.ppn)) {
+			VMKernel.pageCache.remove(entry.ppn);
+			UserKernel.releasePage(entry.ppn);
+		    }
+		    entry.valid = false;
+		}
+		else {
+		    VMKernel.invertedPageTable.remove(entry.ppn);
+		}
+	    }
+
+	    if (swapSlots[vpn] != -1) {
+		VMKernel.swap().free(swapSlots[vpn]);
+		swapSlots[vpn] = -1;
+	    }
+	}
+
 	super.unloadSections();
+
+	VMKernel.memoryLock.release();
     }    
 
+    /**
+     * Return the translation entry for the specified virtual page, paging it
+     * in first if it is not yet resident, and giving the process its own copy
+     * of a shared page it is about to write. Used by the kernel when it
+     * copies syscall arguments to and from user memory.
+     */
+    public TranslationEntry getTransEnt(int vpn, boolean isWrite) {
+	// another thread may evict the page again before we get it back
+	TranslationEntry entry;
+	do {
+	    entry = pageIn(vpn);
+	    if (entry == null)
+		return null;
+
+	    if (isWrite && isCopyOnWrite(vpn) && !breakCopyOnWrite(vpn))
+		return null;
+	} while (!entry.valid);
+
+	return super.getTransEnt(vpn, isWrite);
+    }
+
+    /**
+     * Make the specified virtual page resident. Pages of initialized COFF
+     * sections are mapped read-only from the kernel page cache, shared with
+     * every other process running the same executable. Everything else gets
+     * a private physical page, filled from the swap file if the page has been
+     * written there, or else with zeros.
+     *
+     * @param	vpn	the virtual page to bring in.
+     * @return	the translation entry, or <tt>null</tt> if the page is outside
+     *		the address space or no physical page could be found.
+     */
+    protected TranslationEntry pageIn(int vpn) {
+	if (vpn < 0 || vpn >= numPages)
+	    return null;
+
+	TranslationEntry entry = pageTable[vpn];
+	if (entry.valid)
+	    return entry;
+
+	VMKernel.memoryLock.acquire();
+
+	if (!entry.valid) {
+	    int s = findSection(vpn);
+	    boolean mapped;
+	    if (swapSlots[vpn] == -1 && s != -1 &&
+		coff.getSection(s).isInitialzed())
+		mapped = mapShared(vpn, s);
+	    else
+		mapped = mapPrivate(vpn);
+
+	    if (!mapped) {
+		Lib.debug(dbgVM, "\tout of physical memory");
+		VMKernel.memoryLock.release();
+		return null;
+	    }
+	}
+
+	VMKernel.memoryLock.release();
+	return entry;
+    }
+
+    /**
+     * Map a page of COFF section <i>s</i> from the page cache, loading it into
+     * the cache first if no other process has it.
+     */
+    private boolean mapShared(int vpn, int s) {
+	CoffSection section = coff.getSection(s);
+	int spn = vpn - section.getFirstVPN();
+	String key = PageCache.makeKey(executable.getKey(), s, spn);
+
+	int ppn = VMKernel.pageCache.lookup(key);
+	if (ppn == -1) {
+	    ppn = VMKernel.allocatePage();
+	    if (ppn == -1)
+		return false;
+
+	    Lib.debug(dbgVM, "\tcaching " + section.getName()
+		      + " page " + spn + " in ppn " + ppn);
+	    executable.loadPage(s, spn, ppn);
+	    VMKernel.pageCache.add(key, ppn);
+	}
+
+	// count the fault as a use so the clock does not take it back
+	// before the faulting access has been retried
+	TranslationEntry entry = pageTable[vpn];
+	entry.ppn = ppn;
+	entry.readOnly = true;
+	entry.used = true;
+	entry.dirty = false;
+	entry.valid = true;
+	VMKernel.pageCache.map(ppn, this, entry);
+	return true;
+    }
+
+    /**
+     * Give a page its own physical page. A page of a read-only COFF section
+     * stays read-only, so writing it faults.
+     */
+    private boolean mapPrivate(int vpn) {
+	int ppn = VMKernel.allocatePage();
+	if (ppn == -1)
+	    return false;
+
+	if (swapSlots[vpn] != -1)
+	    VMKernel.swap().read(swapSlots[vpn], ppn);
+	else
+	    loadPage(vpn, ppn);
+
+	int s = findSection(vpn);
+
+	TranslationEntry entry = pageTable[vpn];
+	entry.ppn = ppn;
+	entry.readOnly = s != -1 && coff.getSection(s).isReadOnly();
+	entry.used = true;
+	entry.dirty = false;
+	entry.valid = true;
+	VMKernel.invertedPageTable.insert(this, entry);
+	return true;
+    }
+
+    /**
+     * Test whether a resident page is a shared mapping of a writable section,
+     * or an anonymous page shared with a forked process, which must be copied
+     * before it is written.
+     */
+    private boolean isCopyOnWrite(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	if (!entry.valid || !VMKernel.pageCache.contains(entry.ppn))
+	    return false;
+
+	if (VMKernel.pageCache.isAnonymous(entry.ppn))
+	    return true;
+
+	int s = findSection(vpn);
+	return s != -1 && !coff.getSection(s).isReadOnly();
+    }
+
+    /**
+     * Replace a shared, copy-on-write mapping with a private, writable copy.
+     *
+     * @return	<tt>false</tt> if no physical page could be found.
+     */
+    private boolean breakCopyOnWrite(int vpn) {
+	VMKernel.memoryLock.acquire();
+
+	// the page may have been evicted while we waited for the lock
+	TranslationEntry entry = pageTable[vpn];
+	if (entry.valid && VMKernel.pageCache.contains(entry.ppn)) {
+	    int sharedPpn = entry.ppn;
+	    int ppn;
+	    if (VMKernel.pageCache.isAnonymous(sharedPpn) &&
+		VMKernel.pageCache.isOnlyMapping(sharedPpn, entry)) {
+		// everyone else has let go of it, so there is nothing to copy
+		VMKernel.pageCache.remove(sharedPpn);
+		ppn = sharedPpn;
+	    }
+	    else {
+		ppn = VMKernel.allocatePage();
+		if (ppn == -1) {
+		    VMKernel.memoryLock.release();
+		    return false;
+		}
+
+		// if the clock picked the shared page itself, it has already
+		// been unmapped and its contents are ours to keep
+		if (entry.valid) {
+		    byte[] memory = Machine.processor().getMemory();
+		    System.arraycopy(memory, sharedPpn*pageSize,
+				     memory, ppn*pageSize, pageSize);
+		    VMKernel.pageCache.unmap(sharedPpn, entry);
+		}
+	    }
+	    Lib.debug(dbgVM, "\tcopy-on-write of vpn " + vpn + " to ppn " + ppn);
+
+	    // the page is about to differ from any copy in the swap file
+	    if (swapSlots[vpn] != -1) {
+		VMKernel.swap().free(swapSlots[vpn]);
+		swapSlots[vpn] = -1;
+	    }
+
+	    entry.ppn = ppn;
+	    entry.readOnly = false;
+	    entry.used = true;
+	    entry.dirty = true;
+	    entry.valid = true;
+	    VMKernel.invertedPageTable.insert(this, entry);
+	    updateTLBEntry(vpn, entry);
+	}
+
+	VMKernel.memoryLock.release();
+	return true;
+    }
+
+    /**
+     * Invalidate a mapping of a shared page that the page cache is evicting.
+     * Called with the memory lock held.
+     *
+     * @param	vpn	the virtual page that mapped it.
+     */
+    void unmapShared(int vpn) {
+	pageTable[vpn].valid = false;
+	updateTLBEntry(vpn, null);
+    }
+
+    /**
+     * Return the swap slot holding a virtual page, or -1 if it has none.
+     */
+    int getSwapSlot(int vpn) {
+	return swapSlots[vpn];
+    }
+
+    /**
+     * Record the swap slot holding a virtual page. The caller has already
+     * taken a reference to the slot for this page.
+     */
+    void setSwapSlot(int vpn, int slot) {
+	swapSlots[vpn] = slot;
+    }
+
+    /**
+     * Evict the specified resident page. The translation is invalidated
+     * before anything blocks, and the contents are written to the swap file
+     * if they have changed since the page was brought in. Called by
+     * <tt>VMKernel.allocatePage()</tt> with the memory lock held.
+     *
+     * @param	vpn	the virtual page to evict.
+     */
+    void pageOut(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	Lib.debug(dbgVM, "\tevicting vpn " + vpn + " of process "
+		  + processID + " from ppn " + entry.ppn);
+
+	VMKernel.invertedPageTable.remove(entry.ppn);
+	entry.valid = false;
+	updateTLBEntry(vpn, null);
+
+	if (entry.dirty)
+	    writeBack(vpn);
+    }
+
+    /**
+     * Write a dirty page to the swap file, together with the dirty resident
+     * pages that directly follow it, as one cluster of adjacent slots. The
+     * following pages stay resident but become clean.
+     */
+    private void writeBack(int vpn) {
+	int count = 1;
+	while (count < swapClusterPages && vpn + count < numPages &&
+	       pageTable[vpn+count].valid && pageTable[vpn+count].dirty)
+	    count++;
+
+	for (int i=0; i<count; i++) {
+	    if (swapSlots[vpn+i] != -1)
+		VMKernel.swap().free(swapSlots[vpn+i]);
+	}
+	int slot = VMKernel.swap().allocate(count);
+
+	// clear the dirty bits before copying, so that a store made while the
+	// write is in progress marks the page dirty again
+	byte[] memory = Machine.processor().getMemory();
+	byte[] data = new byte[count*pageSize];
+	for (int i=0; i<count; i++) {
+	    TranslationEntry entry = pageTable[vpn+i];
+	    entry.dirty = false;
+	    if (i > 0)
+		cleanTLBEntry(vpn+i);
+
+	    System.arraycopy(memory, entry.ppn*pageSize, data, i*pageSize,
+			     pageSize);
+	    swapSlots[vpn+i] = slot + i;
+	}
+
+	VMKernel.swap().write(slot, data);
+    }
+
+    /**
+     * If this is the current process, replace the TLB entry caching a virtual
+     * page with a new translation, or invalidate it if <i>entry</i> is
+     * <tt>null</tt>.
+     */
+    private void updateTLBEntry(int vpn, TranslationEntry entry) {
+	if (this != UserKernel.currentProcess() ||
+	    !Machine.processor().hasTLB())
+	    return;
+
+	Processor processor = Machine.processor();
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (tlbEntry.valid && tlbEntry.vpn == vpn)
+		processor.writeTLBEntry(i, entry != null ? entry : invalidEntry);
+	}
+    }
+
+    private void cleanTLBEntry(int vpn) {
+	if (this != UserKernel.currentProcess() ||
+	    !Machine.processor().hasTLB())
+	    return;
+
+	Processor processor = Machine.processor();
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (tlbEntry.valid && tlbEntry.vpn == vpn) {
+		tlbEntry.dirty = false;
+		processor.writeTLBEntry(i, tlbEntry);
+	    }
+	}
+    }
+
+    /**
+     * Fill physical page <i>ppn</i> with the initial contents of virtual page
+     * <i>vpn</i>.
+     */
+    private void loadPage(int vpn, int ppn) {
+	int s = findSection(vpn);
+	if (s != -1) {
+	    CoffSection section = coff.getSection(s);
+	    int spn = vpn - section.getFirstVPN();
+
+	    Lib.debug(dbgVM, "\tloading " + section.getName()
+		      + " page " + spn + " into ppn " + ppn);
+	    executable.loadPage(s, spn, ppn);
+	    return;
+	}
+
+	Lib.debug(dbgVM, "\tzero-filling vpn " + vpn + " into ppn " + ppn);
+	byte[] memory = Machine.processor().getMemory();
+	Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+    }
+
+    /**
+     * Return the number of the COFF section containing a virtual page, or -1
+     * if the page belongs to the stack or arguments.
+     */
+    private int findSection(int vpn) {
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    int spn = vpn - section.getFirstVPN();
+	    if (spn >= 0 && spn < section.getLength())
+		return s;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Return the translation for a virtual page if it is resident, looking
+     * in the inverted page table for private pages and in the page table for
+     * shared ones.
+     */
+    private TranslationEntry residentEntry(int vpn) {
+	TranslationEntry entry =
+	    VMKernel.invertedPageTable.lookup(processID, vpn);
+	if (entry == null && vpn < numPages && pageTable[vpn].valid)
+	    entry = pageTable[vpn];
+
+	return entry;
+    }
+
+    /**
+     * Handle a page fault on the specified virtual address. The faulting
+     * instruction is restarted when this returns.
+     */
+    private void handlePageFault(int vaddr) {
+	if (pageIn(Processor.pageFromAddress(vaddr)) == null)
+	    handleBadAddress(vaddr);
+    }
+
+    /**
+     * Handle a TLB miss on the specified virtual address. Resident pages are
+     * found in the inverted page table; anything else is paged in first.
+     */
+    private void handleTLBMiss(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+
+	TranslationEntry entry = residentEntry(vpn);
+	if (entry == null)
+	    entry = pageIn(vpn);
+
+	if (entry == null) {
+	    handleBadAddress(vaddr);
+	    return;
+	}
+
+	// if the page was evicted again meanwhile, just take another miss
+	if (entry.valid)
+	    Machine.processor().writeTLBEntry(chooseTLBVictim(), entry);
+    }
+
+    /**
+     * Handle a store to a read-only page. Stores to a shared page of a
+     * writable section get a private copy of the page; any other such store
+     * kills the process.
+     */
+    private void handleReadOnly(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+
+	if (vpn >= numPages || !isCopyOnWrite(vpn) || !breakCopyOnWrite(vpn))
+	    handleBadAddress(vaddr);
+    }
+
+    private void handleBadAddress(int vaddr) {
+	Lib.debug(dbgVM, "\tunresolvable fault at 0x"
+		  + Lib.toHexString(vaddr) + ", killing process");
+	handleExit(-1);
+    }
+
+    /**
+     * Pick a TLB slot to refill. An invalid slot is used if there is one;
+     * otherwise the slot in the lowest not-recently-used class (by its used
+     * and dirty bits) is chosen, scanning from where the last search stopped.
+     * When every slot has been used since the last refill, the used bits of
+     * the survivors are cleared so that the classes stay meaningful.
+     *
+     * @return	the TLB slot to overwrite.
+     */
+    private int chooseTLBVictim() {
+	Processor processor = Machine.processor();
+	int tlbSize = processor.getTLBSize();
+
+	int victim = -1, victimClass = 4;
+	for (int n=0; n<tlbSize; n++) {
+	    int i = (tlbHand + n) % tlbSize;
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (!tlbEntry.valid)
+		return i;
+
+	    int nruClass = (tlbEntry.used ? 2 : 0) + (tlbEntry.dirty ? 1 : 0);
+	    if (nruClass < victimClass) {
+		victim = i;
+		victimClass = nruClass;
+	    }
+	}
+
+	tlbHand = (victim + 1) % tlbSize;
+
+	for (int i=0; i<tlbSize; i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    syncTLBEntry(tlbEntry);
+
+	    if (i != victim && victimClass >= 2) {
+		tlbEntry.used = false;
+		processor.writeTLBEntry(i, tlbEntry);
+	    }
+	}
+
+	return victim;
+    }
+
+    /**
+     * Copy the used and dirty bits set by the processor in the TLB back into
+     * this process's page table. Only meaningful for the current process.
+     */
+    void syncTLB() {
+	if (!Machine.processor().hasTLB())
+	    return;
+
+	for (int i=0; i<Machine.processor().getTLBSize(); i++)
+	    syncTLBEntry(Machine.processor().readTLBEntry(i));
+    }
+
+    /**
+     * Copy the used and dirty bits set by the processor in a TLB entry back
+     * into this process's page table.
+     */
+    private void syncTLBEntry(TranslationEntry tlbEntry) {
+	if (!tlbEntry.valid || tlbEntry.vpn >= numPages)
+	    return;
+
+	TranslationEntry entry = pageTable[tlbEntry.vpn];
+	if (entry.valid && entry.ppn == tlbEntry.ppn) {
+	    entry.used |= tlbEntry.used;
+	    entry.dirty |= tlbEntry.dirty;
+	}
+    }
+
+    /**
+     * Initialize the processor's registers. A forked child starts with a
+     * copy of its parent's registers at the time of the fork; anything else
+     * starts at the entry point of its executable.
+     */
+    public void initRegisters() {
+	if (forkRegisters == null) {
+	    super.initRegisters();
+	    return;
+	}
+
+	Processor processor = Machine.processor();
+	for (int i=0; i<Processor.numUserRegisters; i++)
+	    processor.writeRegister(i, forkRegisters[i]);
+
+	forkRegisters = null;
+    }
+
+    /**
+     * Handle the fork() system call. The child gets a copy of this process's
+     * address space in which every resident page is shared read-only with the
+     * parent and copied on the first write by either side, and every swapped
+     * page shares the parent's swap slot. The executable is not loaded again.
+     *
+     * @return	the child's process ID in the parent, 0 in the child, or -1 on
+     *		error.
+     */
+    private int handleFork() {
+	VMProcess child = (VMProcess) UserProcess.newUserProcess();
+	if (child.processID == -1) {
+	    Lib.debug(dbgProcess, "\tprocess table is full");
+	    child.files.closeAll();
+	    return -1;
+	}
+
+	child.copyFiles(this);
+	child.copyAddressSpace(this);
+
+	// the child resumes after the syscall with a return value of 0
+	Processor processor = Machine.processor();
+	child.forkRegisters = new int[Processor.numUserRegisters];
+	for (int i=0; i<Processor.numUserRegisters; i++)
+	    child.forkRegisters[i] = processor.readRegister(i);
+	child.forkRegisters[Processor.regV0] = 0;
+	child.forkRegisters[Processor.regPC] =
+	    child.forkRegisters[Processor.regNextPC];
+	child.forkRegisters[Processor.regNextPC] += 4;
+
+	child.parent = this;
+	children.add(child);
+
+	Lib.debug(dbgProcess, "process " + processID + " forked process "
+		  + child.processID);
+	child.thread = (UThread) new UThread(child).setName(thread.getName());
+	child.thread.fork();
+
+	return child.processID;
+    }
+
+    /**
+     * Share the parent's executable and open files with this newly created
+     * process. Each open file is shared, position and all, until both
+     * processes have closed it.
+     */
+    private void copyFiles(VMProcess parent) {
+	UserKernel.executableCache.share(parent.executable);
+	executable = parent.executable;
+	coff = executable.getCoff();
+
+	files.copy(parent.files);
+    }
+
+    /**
+     * Make this newly created process's address space a copy-on-write
+     * duplicate of the parent's. The parent must be the current process.
+     */
+    private void copyAddressSpace(VMProcess parent) {
+	VMKernel.memoryLock.acquire();
+
+	// pick up stores the parent made through the TLB
+	parent.syncTLB();
+
+	numPages = parent.numPages;
+	pageTable = new TranslationEntry[parent.pageTable.length];
+	swapSlots = initialSwapSlots(pageTable.length);
+
+	for (int vpn=0; vpn<pageTable.length; vpn++) {
+	    TranslationEntry entry = parent.pageTable[vpn];
+	    TranslationEntry copy =
+		new TranslationEntry(vpn, 0, false, entry.readOnly,
+				     false, false);
+	    pageTable[vpn] = copy;
+	    if (vpn >= numPages)
+		continue;
+
+	    if (entry.valid && !VMKernel.pageCache.contains(entry.ppn)) {
+		// a dirty page no longer matches its old swap copy
+		if (entry.dirty && parent.swapSlots[vpn] != -1) {
+		    VMKernel.swap().free(parent.swapSlots[vpn]);
+		    parent.swapSlots[vpn] = -1;
+		}
+
+		VMKernel.invertedPageTable.remove(entry.ppn);
+		VMKernel.pageCache.addAnonymous(entry.ppn);
+		VMKernel.pageCache.map(entry.ppn, parent, entry);
+		entry.readOnly = true;
+		entry.dirty = false;
+		parent.updateTLBEntry(vpn, entry);
+	    }
+
+	    if (entry.valid) {
+		copy.ppn = entry.ppn;
+		copy.readOnly = true;
+		copy.valid = true;
+		VMKernel.pageCache.map(entry.ppn, this, copy);
+	    }
+
+	    if (parent.swapSlots[vpn] != -1) {
+		VMKernel.swap().share(parent.swapSlots[vpn]);
+		swapSlots[vpn] = parent.swapSlots[vpn];
+	    }
+	}
+
+	VMKernel.memoryLock.release();
+    }
+
+    /**
+     * Handle a syscall exception. Called by <tt>handleException()</tt>. The
+     * <i>syscall</i> argument identifies which syscall the user executed:
+     *
+     * <table>
+     * <tr><td>syscall#</td><td>syscall prototype</td></tr>
+     * <tr><td>13</td><td><tt>int  fork();</tt></td></tr>
+     * </table>
+     * 
+     * @param	syscall	the syscall number.
+     * @param	a0	the first syscall argument.
+     * @param	a1	the second syscall argument.
+     * @param	a2	the third syscall argument.
+     * @param	a3	the fourth syscall argument.
+     * @return	the value to be returned to the user.
+     */
+    public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+	switch (syscall) {
+	case syscallFork:
+	    return handleFork();
+
+	default:
+	    return super.handleSyscall(syscall, a0, a1, a2, a3);
+	}
+    }
+
     /**
      * Handle a user exception. Called by
      * <tt>UserKernel.exceptionHandler()</tt>. The
@@ -61,12 +778,60 @@ public class VMProcess extends UserProcess {
 	Processor processor = Machine.processor();
 
 	switch (cause) {
+	case Processor.exceptionPageFault:
+	    handlePageFault(processor.readRegister(Processor.regBadVAddr));
+	    break;
+
+	case Processor.exceptionTLBMiss:
+	    handleTLBMiss(processor.readRegister(Processor.regBadVAddr));
+	    break;
+
+	case Processor.exceptionReadOnly:
+	    handleReadOnly(processor.readRegister(Processor.regBadVAddr));
+	    break;
+	    
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
 	
+    /** The swap slot holding each virtual page, or -1 if it has none. */
+    private int[] swapSlots = initialSwapSlots(pageTable.length);
+
+    private static int[] initialSwapSlots(int length) {
+	int[] slots = new int[length];
+	Arrays.fill(slots, -1);
+	return slots;
+    }
+
+    /** The registers a forked child starts with, or <tt>null</tt>. */
+    private int[] forkRegisters = null;
+
+    /** The virtual pages held in the TLB when this process was switched out. */
+    private int[] savedTLB = initialTLB();
+
+    private static int[] initialTLB() {
+	if (!Machine.processor().hasTLB())
+	    return null;
+
+	int[] saved = new int[Machine.processor().getTLBSize()];
+	Arrays.fill(saved, -1);
+	return saved;
+    }
+
+    private static final int syscallFork = 13;
+
+    /** Where the next search for a TLB victim starts. */
+    private static int tlbHand = 0;
+
+    private static final TranslationEntry invalidEntry =
+	new TranslationEntry();
+
+    /** The most dirty pages written back to swap with one file write. */
+    private static final int swapClusterPages =
+	Config.getInteger("VMKernel.swapClusterPages", 4);
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';